@@ -5,96 +5,214 @@
 
 package com.omartanner.emailscheduler;
 
+import com.omartanner.emailscheduler.lib.ClusterProperties;
+import com.omartanner.emailscheduler.lib.ConfigWatcher;
 import com.omartanner.emailscheduler.lib.Data;
+import com.omartanner.emailscheduler.lib.DatabaseProperties;
 import com.omartanner.emailscheduler.lib.DbConnection;
 import com.omartanner.emailscheduler.lib.EmailerJob;
 import com.omartanner.emailscheduler.lib.EmailerJobListener;
+import com.omartanner.emailscheduler.lib.LazyDbConnection;
+import com.omartanner.emailscheduler.lib.MainProperties;
+import com.omartanner.emailscheduler.lib.Metrics;
+import com.omartanner.emailscheduler.lib.MetricsServer;
+import com.omartanner.emailscheduler.lib.Outbox;
+import com.omartanner.emailscheduler.lib.OutboxDispatcher;
+import com.omartanner.emailscheduler.lib.QueryServer;
+import com.omartanner.emailscheduler.lib.SendLedger;
+import com.omartanner.emailscheduler.lib.WarmUp;
+import org.apache.log4j.AsyncAppender;
 import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.PatternLayout;
 import org.quartz.*;
 import org.quartz.impl.StdSchedulerFactory;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-import org.quartz.impl.matchers.KeyMatcher;
+import org.quartz.impl.matchers.GroupMatcher;
 
 import static org.quartz.CronScheduleBuilder.dailyAtHourAndMinute;
 import static org.quartz.JobBuilder.*;
 import static org.quartz.JobKey.jobKey;
 import static org.quartz.TriggerBuilder.*;
+import static org.quartz.TriggerKey.triggerKey;
 
 public class Main {
-    // DbConnection Object which shall be used to obtain the data from the Access Database.
-    private static DbConnection dbConnection;
+    // Name of the Quartz group holding every emailer job and trigger
+    private static final String GROUP = "group1";
+
+    // DbConnections (by source name) which shall be used to obtain the data from the Access Databases, each opened on first use
+    private static Map<String, LazyDbConnection> dbConnections;
+
+    // Watcher holding the current main and emailer properties, reloaded whenever their JSON changes
+    private static ConfigWatcher config;
+
+    // Durable queue of emails awaiting sending, drained by an OutboxDispatcher
+    private static Outbox outbox;
+
+    // Ledger of the recipients sent each run's email, shared by the nodes of a cluster (null when not clustered)
+    private static SendLedger sendLedger;
 
     // Logger that may be accessed by other classes to log info (initialized in main)
+    private static final String LOG_NAME = "EmailSchedulerLog";
     private static Logger log;
 
+    // Command line argument which starts up, warms up every source once and exits, without ever starting the scheduler. Used
+    // as the training run when creating a class-data sharing archive (see README).
+    private static final String WARM_UP_AND_EXIT = "--warm-up-and-exit";
+
+    // Warms up each source shortly before its daily trigger fires (initialized in main)
+    private static WarmUp warmUp;
+
     public static void main(String[] args) {
+        boolean training = Arrays.asList(args).contains(WARM_UP_AND_EXIT);
+
         try {
-            BasicConfigurator.configure();
-            log = Data.getNewLogger("EmailSchedulerLog");
+            // Log4j (used by Quartz and Jackcess) writes to the console via an AsyncAppender, so it never blocks the caller either
+            AsyncAppender appender = new AsyncAppender();
+            appender.addAppender(new ConsoleAppender(new PatternLayout(PatternLayout.TTCC_CONVERSION_PATTERN)));
+            BasicConfigurator.configure(appender);
+            log = Data.getNewLogger(LOG_NAME);
         }
         catch (URISyntaxException | IOException e) { // Failure obtaining logger
             throw new RuntimeException("Failure to initialise logger! Stack trace: " + e.getStackTrace());
         }
 
-        // Attempt to obtain main properties from the JSON
-        Map<String, Object> propertiesJson = null;
+        // Attempt to obtain main and emailer properties from the JSON
         try {
-            propertiesJson = Data.loadMainProperties();
-        } catch (URISyntaxException | FileNotFoundException e) {
-            String errorStr = "Failure to load main properties JSON! Stack trace: " + e.getStackTrace().toString();
+            config = new ConfigWatcher();
+        } catch (URISyntaxException | IOException e) {
+            String errorStr = "Failure to load properties JSON! Stack trace: " + e.getStackTrace().toString();
             log.severe("[Main] " + errorStr);
             throw new RuntimeException(errorStr);
         }
+        MainProperties properties = config.getMainProperties();
+        Data.configureLogger(properties);
+        // Apply any changes to the logging policy as the JSON changes
+        config.addListener((previous, current) -> Data.configureLogger(current));
 
-        // Obtain db-path and db-password from JSON to construct DbConnection object
-        String dbPath= (String) propertiesJson.get("db-path");
-        String dbPassword = (String) propertiesJson.get("db-password");
+        // Construct a lazily opened DbConnection per database source in the JSON, so startup doesn't wait on any of them
+        Map<String, LazyDbConnection> connections = new LinkedHashMap<>();
+        for (DatabaseProperties database : properties.getDatabases()) {
+            connections.put(database.getName(), new LazyDbConnection(database));
+        }
+        dbConnections = Collections.unmodifiableMap(connections);
+        // Each open connection holds a full (decrypted at rest) copy of its database in the temporary directory, so close them
+        // all on exit, including the training run's below
+        Runtime.getRuntime().addShutdownHook(new Thread(Main::closeConnections, "close-connections"));
+
+        // In a training run, warm up every source (loading the classes the runs use) and exit, before serving metrics, sending
+        // the outbox or scheduling any job, since a clustered job store is shared with the nodes actually running
+        if (training) {
+            WarmUp.runNow(dbConnections.keySet());
+            log.info("[Main] Warmed up every source, exiting");
+            System.exit(0);
+        }
+
+        // Expose the metrics over JMX, and over HTTP if a port is configured. Neither is required to run, so only warn on failure.
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(Metrics.get(), new ObjectName("com.omartanner.emailscheduler:type=Metrics"));
+        }
+        catch (JMException e) {
+            log.warning("[Main] Failure to register metrics MBean! Error: " + e);
+        }
+        if (properties.getMetricsPort() != null) {
+            try {
+                new MetricsServer(properties.getMetricsBindAddress(), properties.getMetricsPort()).start();
+            }
+            catch (IOException e) {
+                log.warning("[Main] Failure to start metrics server on port " + properties.getMetricsPort() + "! Error: " + e);
+            }
+        }
 
-        // Attempt to construct DbConnection object using above auth data
+        // Attempt to open the outbox, and start sending any emails left in it from before a restart
         try {
-            dbConnection = new DbConnection(dbPath, dbPassword);
-        } catch (IOException e) { // Failure to connect to database
-            String errorStr = "Failure to connect to database! Stack trace: " + e.getStackTrace().toString();
+            outbox = new Outbox(Data.getOutboxDirectory(properties.getOutboxDir()));
+        }
+        catch (URISyntaxException | IOException e) { // Failure to create the outbox directory
+            String errorStr = "Failure to open outbox! Stack trace: " + e.getStackTrace().toString();
             log.severe("[Main] " + errorStr);
             throw new RuntimeException(errorStr);
         }
-
-        // Construct emailer job
-        JobDetail job = newJob(EmailerJob.class)
-                .withIdentity("emailer_job", "group1")
-                .build();
-
-        // Obtain hour and minute from the JSON
-        Integer hour = ((Double) propertiesJson.get("hour")).intValue();
-        Integer minute = ((Double) propertiesJson.get("hour-minute")).intValue();
-
-        // Construct daily trigger
-        CronTrigger trigger = newTrigger()
-                .withIdentity("daily_trigger", "group1")
-                .startNow()
-                .withSchedule(dailyAtHourAndMinute(hour, minute)) // fire every day at <hour>:<minute> time
-                .build();
+        new OutboxDispatcher(outbox, properties.getDispatcherThreads()).start();
 
         // Attempt to obtain scheduler, initialize it and start it
         try {
-            // Obtain scheduler
-            Scheduler scheduler = new StdSchedulerFactory().getScheduler();
+            // Obtain scheduler, with a worker thread per source that may be scanned at once
+            Scheduler scheduler = new StdSchedulerFactory(buildSchedulerProperties(properties)).getScheduler();
+
+            // When clustered, open the send ledger shared by every node
+            if (properties.getCluster() != null) {
+                try {
+                    sendLedger = new SendLedger(properties.getCluster(), scheduler.getSchedulerInstanceId());
+                }
+                catch (SQLException e) { // Failure to connect to the cluster database
+                    throw new SchedulerException("Failure to open send ledger!", e);
+                }
+            }
 
-            // Schedule job
-            scheduler.scheduleJob(job, trigger);
+            // Schedule an emailer job per source, with a daily trigger each. In a cluster, each firing runs on just one node,
+            // and a job that was running on a node that fails is recovered (run again) by another.
+            for (String source : dbConnections.keySet()) {
+                JobDetail job = newJob(EmailerJob.class)
+                        .withIdentity(jobKey(emailerJobName(source), GROUP))
+                        .usingJobData(EmailerJob.SOURCE_KEY, source)
+                        .requestRecovery(true)
+                        .build();
+                // Replace any job and trigger already in a persistent job store (e.g. from a previous start of this node)
+                scheduler.scheduleJob(job, Collections.singleton(buildDailyTrigger(source, properties)), true);
+            }
 
             // Add listener
-            scheduler.getListenerManager().addJobListener(new EmailerJobListener("emailer-job-listener"), KeyMatcher.keyEquals(jobKey("emailer_job", "group1")));
+            scheduler.getListenerManager().addJobListener(new EmailerJobListener("emailer-job-listener"), GroupMatcher.jobGroupEquals(GROUP));
+
+            Map<String, TriggerKey> triggers = new LinkedHashMap<>();
+            for (String source : dbConnections.keySet()) {
+                triggers.put(source, dailyTriggerKey(source));
+            }
+            warmUp = new WarmUp(scheduler, triggers, properties.getWarmUpMinutes());
 
             // Start the scheduler
             scheduler.start();
 
+            // Open every database in the background, so neither startup nor the first run waits for it, and warm up each
+            // source shortly before its first run
+            for (LazyDbConnection connection : dbConnections.values()) {
+                connection.openInBackground();
+            }
+            warmUp.start();
+
+            // Serve on-demand queries of the certificates, and ad-hoc runs, if a port is configured. Not required to run, so
+            // only warn on failure.
+            if (properties.getQueryPort() != null) {
+                Map<String, JobKey> jobs = new LinkedHashMap<>();
+                for (String source : dbConnections.keySet()) {
+                    jobs.put(source, jobKey(emailerJobName(source), GROUP));
+                }
+                try {
+                    new QueryServer(properties.getQueryBindAddress(), properties.getQueryPort(), properties.getQueryRunToken(),
+                            scheduler, jobs, properties.getQueryRefreshMinutes()).start();
+                }
+                catch (IOException e) {
+                    log.warning("[Main] Failure to start query server on port " + properties.getQueryPort() + "! Error: " + e);
+                }
+            }
+
+            // Reschedule the daily triggers (and their warm-ups) whenever their time of day is changed in the JSON
+            config.addListener((previous, current) -> reschedule(scheduler, previous, current));
         }
         catch (SchedulerException e) { // Failure initializing or starting scheduler
             String errorStr = "Failure initializing or starting scheduler! Stack trace: " + e.getStackTrace().toString();
@@ -102,17 +220,138 @@ public class Main {
             throw new RuntimeException(errorStr);
         }
 
+        // Attempt to start watching the JSON for changes, continuing with the properties as loaded if it can't be watched
+        try {
+            config.start();
+        }
+        catch (IOException e) {
+            log.warning("[Main] Failure to watch properties JSON, changes will require a restart! Error: " + e);
+        }
+
         log.info("[Main] SUCCESS - Successfully started scheduler!");
     }
 
-    // Accesser method for the DbConnection, utillised by the EmailerJob to obtain the data from the database
-    public static DbConnection getDbConnection() {
-        return dbConnection;
+    // Constructs the Quartz configuration: a thread pool of "thread-count" threads, and either an in-memory job store or, if
+    // "cluster" is set, a clustered JDBC job store (whose QRTZ_ tables must already exist in the cluster database)
+    private static Properties buildSchedulerProperties(MainProperties properties) {
+        Properties quartz = new Properties();
+        quartz.setProperty("org.quartz.scheduler.instanceName", "EmailScheduler");
+        quartz.setProperty("org.quartz.threadPool.class", "org.quartz.simpl.SimpleThreadPool");
+        quartz.setProperty("org.quartz.threadPool.threadCount", Integer.toString(properties.getThreadCount()));
+
+        ClusterProperties cluster = properties.getCluster();
+        if (cluster == null) {
+            quartz.setProperty("org.quartz.jobStore.class", "org.quartz.simpl.RAMJobStore");
+            return quartz;
+        }
+        quartz.setProperty("org.quartz.scheduler.instanceId", cluster.getInstanceId());
+        quartz.setProperty("org.quartz.jobStore.class", "org.quartz.impl.jdbcjobstore.JobStoreTX");
+        quartz.setProperty("org.quartz.jobStore.driverDelegateClass", "org.quartz.impl.jdbcjobstore.StdJDBCDelegate");
+        quartz.setProperty("org.quartz.jobStore.useProperties", "true");
+        quartz.setProperty("org.quartz.jobStore.isClustered", "true");
+        quartz.setProperty("org.quartz.jobStore.clusterCheckinInterval", Long.toString(cluster.getCheckinIntervalMs()));
+        quartz.setProperty("org.quartz.jobStore.misfireThreshold", Long.toString(cluster.getMisfireThresholdMs()));
+        quartz.setProperty("org.quartz.jobStore.dataSource", "emailScheduler");
+        quartz.setProperty("org.quartz.dataSource.emailScheduler.driver", cluster.getDriver());
+        quartz.setProperty("org.quartz.dataSource.emailScheduler.URL", cluster.getUrl());
+        quartz.setProperty("org.quartz.dataSource.emailScheduler.user", cluster.getUser());
+        quartz.setProperty("org.quartz.dataSource.emailScheduler.password", cluster.getPassword());
+        // A connection per worker thread, plus those used by the misfire handler and cluster manager
+        quartz.setProperty("org.quartz.dataSource.emailScheduler.maxConnections", Integer.toString(properties.getThreadCount() + 2));
+        return quartz;
+    }
+
+    // Closes every source's DbConnection, deleting its snapshot of the database file
+    private static void closeConnections() {
+        for (LazyDbConnection connection : dbConnections.values()) {
+            try {
+                connection.close();
+            }
+            catch (IOException | RuntimeException e) {
+                log.warning("[Main] Failure to close " + connection.getProperties().getName() + "! Error: " + e);
+            }
+        }
+    }
+
+    private static String emailerJobName(String source) {
+        return "emailer_job-" + source;
+    }
+
+    private static TriggerKey dailyTriggerKey(String source) {
+        return triggerKey("daily_trigger-" + source, GROUP);
+    }
+
+    // Constructs the trigger firing `source`'s job every day at the <hour>:<hour-minute> time in `properties`
+    private static CronTrigger buildDailyTrigger(String source, MainProperties properties) {
+        return newTrigger()
+                .withIdentity(dailyTriggerKey(source))
+                .forJob(jobKey(emailerJobName(source), GROUP))
+                .startNow()
+                // If every node was down when the trigger was due, fire once as soon as one is back up
+                .withSchedule(dailyAtHourAndMinute(properties.getHour(), properties.getMinute())
+                        .withMisfireHandlingInstructionFireAndProceed())
+                .build();
+    }
+
+    // Reschedules the daily triggers on the live scheduler if their time of day has changed between `previous` and `current`,
+    // and the warm-ups if either the triggers or the warm-up lead time have changed
+    private static void reschedule(Scheduler scheduler, MainProperties previous, MainProperties current) {
+        if (!Objects.equals(previous.getDbPath(), current.getDbPath()) || !previous.getDatabases().equals(current.getDatabases())) {
+            log.warning("[Main] Database sources have changed, which will only take effect after a restart!");
+        }
+        boolean timeChanged = previous.getHour() != current.getHour() || previous.getMinute() != current.getMinute();
+        if (timeChanged) rescheduleTriggers(scheduler, current);
+        // After the triggers are replaced, since the warm-ups are timed from them
+        if (timeChanged || previous.getWarmUpMinutes() != current.getWarmUpMinutes()) {
+            warmUp.reschedule(current.getWarmUpMinutes());
+        }
+    }
+
+    // Replaces every daily trigger with one firing at the time of day in `current`
+    private static void rescheduleTriggers(Scheduler scheduler, MainProperties current) {
+        for (String source : dbConnections.keySet()) {
+            try {
+                scheduler.rescheduleJob(dailyTriggerKey(source), buildDailyTrigger(source, current));
+                log.info("[Main] Rescheduled daily trigger of " + source + " to " + current.getHour() + ":" + current.getMinute());
+            }
+            catch (SchedulerException e) { // Failure to reschedule, so the previous schedule remains
+                log.severe("[Main] Failure to reschedule daily trigger of " + source + "! Error: " + e);
+            }
+        }
+    }
+
+    // Accesser method for the DbConnection of the database source named `source`, utillised by the EmailerJob to obtain the
+    // data from the database. Opens the connection if this is its first use.
+    // THROWS: IOException when there is no such source, or failing to connect to its database.
+    public static DbConnection getDbConnection(String source) throws IOException {
+        LazyDbConnection connection = dbConnections.get(source);
+        if (connection == null) {
+            throw new IOException("[Main] No database source named " + source + "!");
+        }
+        return connection.get();
+    }
+
+    // Accesser method for the current properties, utilised by the EmailerJob to obtain its settings on each run
+    public static ConfigWatcher getConfig() {
+        return config;
+    }
+
+    // Accesser method for the outbox, utilised by the EmailerJob to queue its emails for sending
+    public static Outbox getOutbox() {
+        return outbox;
+    }
+
+    // Accesser method for the send ledger, utilised by the EmailerJob to avoid sending a run's email twice across the cluster.
+    // Null when not clustered.
+    public static SendLedger getSendLedger() {
+        return sendLedger;
     }
 
-    // Accesser method for the Logger, utilised by other classes (e.g EmailerJobListener) to log centrally
+    // Accesser method for the Logger, utilised by other classes (e.g EmailerJobListener) to log centrally. Before main has set
+    // it up (e.g. when a class is used on its own in a test), this is the same named Logger, without the log file.
     public static Logger getLogger() {
-        return log;
+        Logger result = log;
+        return result != null ? result : Logger.getLogger(LOG_NAME);
     }
 
 }
@@ -0,0 +1,174 @@
+/*
+    JMH benchmarks of each stage of the EmailerJob pipeline (index -> scan -> sort -> render -> send) separately and end to
+    end, against a synthetic database and a local SMTP sink. Run with the GC profiler to see bytes allocated per operation:
+    java -jar emailscheduler/bench/target/benchmarks.jar -prof gc [-p rows=10000]
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.bench;
+
+import com.omartanner.emailscheduler.lib.Certificate;
+import com.omartanner.emailscheduler.lib.CertificateSorter;
+import com.omartanner.emailscheduler.lib.DbConnection;
+import com.omartanner.emailscheduler.lib.EmailService;
+import com.omartanner.emailscheduler.lib.EmailerJob;
+import com.omartanner.emailscheduler.lib.MessageRenderer;
+import com.omartanner.emailscheduler.lib.SmtpSink;
+import com.omartanner.emailscheduler.lib.SyntheticDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+
+// Sampled, so each stage reports its latency percentiles as well as its mean
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    // Threshold of the rule benchmarked, that of the default rule
+    private static final int WITHIN_DAYS = 90;
+    private static final String OWNER_COLUMN = SyntheticDatabase.OWNER_COLUMN;
+    private static final String ADDRESS = "bench@localhost";
+
+    // Writer which discards everything written to it, so rendering can be measured without buffering the output
+    private static final Writer DISCARD = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) { }
+
+        @Override
+        public void write(String str, int off, int len) { }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+    };
+
+    // Rows in the synthetic certificates table. Tables are only scanned in parallel in partitions of at least 32768 rows, so
+    // use a few hundred thousand to see the index build scale.
+    @Param("10000")
+    public int rows;
+
+    private File dbFile;
+    private SmtpSink sink;
+    private DbConnection connection;
+    private EmailService emailer;
+    private ArrayList<Certificate> certificates;
+    private String html;
+    private String subject;
+
+    // Threads available to the partitioned index build
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1", "2", "4"})
+        public int threads;
+
+        private ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            pool = new ForkJoinPool(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dbFile = SyntheticDatabase.create(rows);
+        sink = new SmtpSink();
+        connection = new DbConnection(dbFile.getPath(), "", DbConnection.DEFAULT_PAGE_CACHE_MB, OWNER_COLUMN, null);
+        emailer = new EmailService("localhost", sink.getPort(), "bench", "bench");
+        certificates = connection.getCertificates(WITHIN_DAYS, OWNER_COLUMN, null);
+        html = new MessageRenderer(certificates, System.currentTimeMillis(), WITHIN_DAYS, -1).renderHtml();
+        subject = EmailerJob.buildSubject(certificates.size());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connection.close();
+        emailer.close();
+        sink.close();
+    }
+
+    // Snapshots and opens the database, and builds the expiry index, on the common pool
+    @Benchmark
+    public DbConnection index() throws IOException {
+        DbConnection built = new DbConnection(dbFile.getPath(), "", DbConnection.DEFAULT_PAGE_CACHE_MB, OWNER_COLUMN, null);
+        built.close();
+        return built;
+    }
+
+    // As index, with the number of threads of `pool`, to show how the partitioned scan scales
+    @Benchmark
+    public DbConnection indexParallel(Pool pool) throws InterruptedException, ExecutionException {
+        return pool.pool.submit(() -> {
+            DbConnection built = new DbConnection(dbFile.getPath(), "", DbConnection.DEFAULT_PAGE_CACHE_MB, OWNER_COLUMN, null);
+            built.close();
+            return built;
+        }).get();
+    }
+
+    @Benchmark
+    public List<Certificate> scan() throws IOException {
+        return connection.getCertificates(WITHIN_DAYS, OWNER_COLUMN, null);
+    }
+
+    @Benchmark
+    public List<Certificate> sort() {
+        ArrayList<Certificate> copy = new ArrayList<>(certificates);
+        CertificateSorter.sort(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public List<Certificate> top100() {
+        return CertificateSorter.soonest(certificates, 100);
+    }
+
+    @Benchmark
+    public void render() throws IOException {
+        new MessageRenderer(certificates, System.currentTimeMillis(), WITHIN_DAYS, -1).writeHtml(DISCARD);
+    }
+
+    @Benchmark
+    public void send() throws MessagingException {
+        emailer.sendMail(html, subject, ADDRESS, ADDRESS);
+    }
+
+    @Benchmark
+    public void endToEnd() throws IOException, MessagingException {
+        ArrayList<Certificate> matched = connection.getCertificates(WITHIN_DAYS, OWNER_COLUMN, null);
+        CertificateSorter.sort(matched);
+        MessageRenderer renderer = new MessageRenderer(matched, System.currentTimeMillis(), WITHIN_DAYS, -1);
+        emailer.sendBatch(Collections.singletonList(emailer.createMessage(renderer.toMultipart(),
+                EmailerJob.buildSubject(matched.size()), ADDRESS, ADDRESS)));
+    }
+}
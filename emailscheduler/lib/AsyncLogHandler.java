@@ -0,0 +1,251 @@
+/*
+    A java.util.logging Handler which never blocks the logging thread on disk I/O. Records are placed in a bounded lock-free
+    ring buffer and written out in batches by a background thread as JSON lines, rolling the file over by size and age.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class AsyncLogHandler extends Handler {
+    // Capacity of the ring buffer (a power of two), beyond which records are dropped rather than blocking the caller
+    static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    // How often the writer thread flushes a batch
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static final Gson gson = new Gson();
+
+    private File file;
+
+    // Ring buffer. Producers claim slots by advancing `tail`; the single writer thread consumes from `head`. A claimed slot
+    // is null until its producer has filled it.
+    private AtomicReferenceArray<LogRecord> ring = new AtomicReferenceArray<>(CAPACITY);
+    private AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private AtomicLong dropped = new AtomicLong();
+
+    // Rolling and truncation policy, adjustable at any time (see configure)
+    private volatile int maxMessageChars = 2000;
+    private volatile long maxFileBytes = 10L * 1024 * 1024;
+    private volatile long rollIntervalMs = TimeUnit.HOURS.toMillis(24);
+    private volatile int maxFiles = 10;
+
+    // State of the writer thread
+    private Thread writerThread;
+    private volatile boolean closed = false;
+    private Writer writer;
+    private long fileBytes;
+    private long fileOpenedAt;
+
+    // Writes to `file`, rolling it over to siblings named <name>.<timestamp>
+    // THROWS: IOException when failing to open `file`.
+    public AsyncLogHandler(File file) throws IOException {
+        this.file = file;
+        openFile();
+        writerThread = new Thread(this::writeLoop, "async-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Sets the truncation and rolling policy: messages are cut to `maxMessageChars`, and the file is rolled over once it
+    // exceeds `maxFileBytes` or is older than `rollIntervalMs`, keeping at most `maxFiles` rolled files
+    public void configure(int maxMessageChars, long maxFileBytes, long rollIntervalMs, int maxFiles) {
+        this.maxMessageChars = maxMessageChars;
+        this.maxFileBytes = maxFileBytes;
+        this.rollIntervalMs = rollIntervalMs;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        // Claim the next slot, unless the writer has fallen a whole buffer behind. Only SEVERE records, which are rare and
+        // shouldn't be lost, wait for space rather than being dropped.
+        boolean severe = record.getLevel().intValue() >= Level.SEVERE.intValue();
+        while (true) {
+            long slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                if (severe) {
+                    // Once closed, the writer thread may already have exited and would never make space
+                    if (closed) return;
+                    LockSupport.unpark(writerThread);
+                    Thread.yield();
+                    continue;
+                }
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.set((int) (slot & MASK), record);
+                // Wake the writer early if the buffer is filling up faster than it flushes. Any slot past half way does so, since
+                // `head` may move between reads and the exact half way slot be missed.
+                if (slot - head >= CAPACITY / 2) LockSupport.unpark(writerThread);
+                return;
+            }
+        }
+    }
+
+    // Batches are flushed by the writer thread on its own schedule
+    @Override
+    public void flush() {
+    }
+
+    // Stops the writer thread once it has written everything published so far
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Drains the ring buffer and writes each batch, until closed
+    private void writeLoop() {
+        while (true) {
+            boolean wasClosed = closed;
+            try {
+                drain();
+            }
+            catch (IOException e) {
+                reportError("[AsyncLogHandler] Failure to write log!", e, ErrorManager.WRITE_FAILURE);
+            }
+            if (wasClosed) break;
+            LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            reportError("[AsyncLogHandler] Failure to close log!", e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    // Writes every record published so far as one batch, then flushes once
+    private void drain() throws IOException {
+        long end = tail.get();
+        long dropCount = dropped.getAndSet(0);
+        if (head == end && dropCount == 0) return;
+
+        if (dropCount > 0) {
+            writeLine(format(System.currentTimeMillis(), "WARNING", getClass().getName(),
+                    "[AsyncLogHandler] Dropped " + dropCount + " records!", null));
+        }
+        for (long next = head; next < end; next++) {
+            int index = (int) (next & MASK);
+            LogRecord record;
+            // Wait for a producer that has claimed the slot to finish filling it
+            while ((record = ring.get(index)) == null) {
+                Thread.yield();
+            }
+            ring.set(index, null);
+            head = next + 1;
+            writeLine(format(record.getMillis(), record.getLevel().getName(), record.getLoggerName(), messageOf(record), record.getThrown()));
+        }
+        writer.flush();
+    }
+
+    private void writeLine(String line) throws IOException {
+        rollIfDue();
+        writer.write(line);
+        writer.write('\n');
+        // Approximate for non-ASCII text, which is plenty for deciding when to roll
+        fileBytes += line.length() + 1;
+    }
+
+    // Formats a record as a single JSON line, truncating the message as per the policy
+    private String format(long millis, String level, String logger, String message, Throwable thrown) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("time", millis);
+        line.put("level", level);
+        line.put("logger", logger);
+        line.put("message", truncate(message));
+        if (thrown != null) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            line.put("thrown", trace.toString());
+        }
+        return gson.toJson(line);
+    }
+
+    private String truncate(String message) {
+        int limit = maxMessageChars;
+        if (message == null || limit < 0 || message.length() <= limit) return message;
+        return message.substring(0, limit) + "...[truncated " + (message.length() - limit) + " chars]";
+    }
+
+    // The record's message with any parameters substituted
+    private String messageOf(LogRecord record) {
+        if (getFormatter() != null) return getFormatter().formatMessage(record);
+        Object[] parameters = record.getParameters();
+        if (parameters == null || parameters.length == 0) return record.getMessage();
+        return MessageFormat.format(record.getMessage(), parameters);
+    }
+
+    // Rolls the file over if it's too large or too old
+    private void rollIfDue() throws IOException {
+        if (fileBytes < maxFileBytes && System.currentTimeMillis() - fileOpenedAt < rollIntervalMs) return;
+        writer.close();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        // Rolling more than once within a millisecond would otherwise overwrite the file rolled before
+        File rolled = new File(file.getParentFile(), file.getName() + "." + stamp);
+        for (int n = 1; rolled.exists(); n++) {
+            rolled = new File(file.getParentFile(), file.getName() + "." + stamp + "-" + n);
+        }
+        if (!file.renameTo(rolled)) {
+            reportError("[AsyncLogHandler] Failure to roll over " + file + "!", null, ErrorManager.GENERIC_FAILURE);
+        }
+        deleteOldFiles();
+        openFile();
+    }
+
+    // Deletes the oldest rolled files beyond the maximum kept
+    private void deleteOldFiles() {
+        final String prefix = file.getName() + ".";
+        File[] rolled = file.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (rolled == null || rolled.length <= maxFiles) return;
+        // Timestamps sort chronologically
+        Arrays.sort(rolled);
+        for (int i = 0; i < rolled.length - maxFiles; i++) {
+            if (!rolled[i].delete()) {
+                reportError("[AsyncLogHandler] Failure to delete " + rolled[i] + "!", null, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+
+    // Opens the file for appending
+    private void openFile() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        fileBytes = file.length();
+        fileOpenedAt = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+    A Jackcess CodecProvider which keeps a bounded LRU cache of decrypted pages in front of another (e.g. the
+    CryptCodecProvider), shared by every Database opened with it, so a page already decrypted isn't decrypted again.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.healthmarketscience.jackcess.impl.CodecHandler;
+import com.healthmarketscience.jackcess.impl.CodecProvider;
+import com.healthmarketscience.jackcess.impl.DefaultCodecProvider;
+import com.healthmarketscience.jackcess.impl.PageChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class CachingCodecProvider implements CodecProvider {
+    private CodecProvider delegate;
+    // Access-ordered, so the eldest entry is the least recently used
+    private LinkedHashMap<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    // Bytes held by the cached pages, counting both their encoded and decoded content
+    private long bytes = 0;
+
+    // Caches pages decoded by `delegate`, holding at most `maxBytes` of their encoded and decoded content. Every Database
+    // opened with this provider must be of the same file (or copies of it) and password.
+    public CachingCodecProvider(CodecProvider delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public CodecHandler createHandler(PageChannel channel, Charset charset) throws IOException {
+        CodecHandler handler = delegate.createHandler(channel, charset);
+        // Nothing to cache if the database isn't encrypted
+        if (handler == DefaultCodecProvider.DUMMY_HANDLER) return handler;
+        return new CachingHandler(handler);
+    }
+
+    // Number of pages currently cached
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    // Bytes currently held by the cached pages
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private synchronized Page get(int pageNumber) {
+        return pages.get(pageNumber);
+    }
+
+    // Caches `page`, then evicts the least recently used pages until the cache is back within its budget (which may evict
+    // `page` itself, if it alone is larger than the budget)
+    private synchronized void put(int pageNumber, Page page) {
+        Page replaced = pages.put(pageNumber, page);
+        if (replaced != null) bytes -= replaced.size();
+        bytes += page.size();
+        Iterator<Page> eldest = pages.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(int pageNumber) {
+        Page removed = pages.remove(pageNumber);
+        if (removed != null) bytes -= removed.size();
+    }
+
+    // A page as read from the file, alongside its decoded content and the position and limit the decoder left the output at
+    private static class Page {
+        private final byte[] encoded;
+        private final byte[] decoded;
+        private final int position;
+        private final int limit;
+
+        private Page(byte[] encoded, byte[] decoded, int position, int limit) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private int size() {
+            return encoded.length + decoded.length;
+        }
+    }
+
+    // Decodes pages through the cache. A cached page is only used if the page read from the file is byte for byte the one
+    // cached, so pages unchanged between copies of the file are reused, and changed pages never are.
+    private class CachingHandler implements CodecHandler {
+        private CodecHandler handler;
+
+        private CachingHandler(CodecHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean canEncodePartialPage() {
+            return handler.canEncodePartialPage();
+        }
+
+        @Override
+        public boolean canDecodeInline() {
+            return handler.canDecodeInline();
+        }
+
+        @Override
+        public void decodePage(ByteBuffer inPage, ByteBuffer outPage, int pageNumber) throws IOException {
+            ByteBuffer in = inPage.duplicate();
+            in.position(0);
+            byte[] encoded = new byte[in.limit()];
+            in.get(encoded);
+
+            Page page = get(pageNumber);
+            if (page != null && Arrays.equals(page.encoded, encoded)) {
+                Metrics.counter(Metrics.PAGE_CACHE_HITS).add(1);
+                // Leave the output exactly as the decoder would have
+                outPage.clear();
+                outPage.put(page.decoded);
+                outPage.limit(page.limit);
+                outPage.position(page.position);
+                return;
+            }
+
+            Metrics.counter(Metrics.PAGE_CACHE_MISSES).add(1);
+            handler.decodePage(inPage, outPage, pageNumber);
+            ByteBuffer out = outPage.duplicate();
+            out.clear();
+            byte[] decoded = new byte[encoded.length];
+            out.get(decoded);
+            put(pageNumber, new Page(encoded, decoded, outPage.position(), outPage.limit()));
+        }
+
+        @Override
+        public ByteBuffer encodePage(ByteBuffer page, int pageNumber, int pageOffset) throws IOException {
+            // The page is being rewritten, so its cached content is stale. (The byte for byte check in decodePage would catch
+            // this too, but there's no point holding on to it.)
+            remove(pageNumber);
+            return handler.encodePage(page, pageNumber, pageOffset);
+        }
+    }
+}
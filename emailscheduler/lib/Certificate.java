@@ -0,0 +1,51 @@
+/*
+    A certificate read from the database: just the columns the pipeline uses, rather than the full Jackcess Row.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.time.LocalDate;
+
+public final class Certificate {
+    private final long expiryDay;
+    private final String name;
+    private final String owner;
+    private final String id;
+
+    // Constructs a certificate expiring on day `expiryDay` (since the epoch, see EscalationRules.epochDay). `owner` and `id` are
+    // null unless their columns were read.
+    public Certificate(long expiryDay, String name, String owner, String id) {
+        this.expiryDay = expiryDay;
+        this.name = name;
+        this.owner = owner;
+        this.id = id;
+    }
+
+    public long getExpiryDay() {
+        return expiryDay;
+    }
+
+    public LocalDate getExpiryDate() {
+        return LocalDate.ofEpochDay(expiryDay);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Value of the "owner-column" (see FanOutSender), or null
+    public String getOwner() {
+        return owner;
+    }
+
+    // Value of the change-capture "id-column" (see ChangeCapture), or null
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + getExpiryDate() + ")";
+    }
+}
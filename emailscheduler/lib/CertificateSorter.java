@@ -0,0 +1,111 @@
+/*
+    Sorts certificates such that the earliest to expire come first, using primitive sort keys extracted once per certificate.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CertificateSorter {
+    // At or above this many certificates, the keys are sorted in parallel on the common fork-join pool
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    // A sort key packs a certificate's expiry day into the high bits and its index into the low INDEX_BITS bits, so sorting
+    // the keys sorts the certificates by expiry, keeping the input order for those expiring on the same day
+    private static final int INDEX_BITS = 30;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    // Sorts `certificates` in place, such that the earliest to expire come first
+    public static void sort(List<Certificate> certificates) {
+        long[] keys = extractKeys(certificates);
+        // Certificates from the DbConnection index usually arrive already sorted, in which case there is nothing to do
+        if (isSorted(keys)) return;
+        if (keys.length >= PARALLEL_THRESHOLD) Arrays.parallelSort(keys);
+        else Arrays.sort(keys);
+        reorder(certificates, keys, keys.length);
+    }
+
+    // Returns the (at most) `k` certificates of `certificates` which are soonest to expire, the earliest first. Runs in
+    // O(n log k) time by keeping the k smallest keys in a bounded max-heap rather than sorting everything.
+    public static List<Certificate> soonest(List<Certificate> certificates, int k) {
+        if (k <= 0) return new ArrayList<>();
+        long[] keys = extractKeys(certificates);
+        if (k >= keys.length) {
+            Arrays.sort(keys);
+            return select(certificates, keys, keys.length);
+        }
+
+        // Build a max-heap of the first k keys, then replace its root with each later key that's smaller
+        long[] heap = Arrays.copyOf(keys, k);
+        for (int i = k / 2 - 1; i >= 0; i--) {
+            siftDown(heap, i, k);
+        }
+        for (int i = k; i < keys.length; i++) {
+            if (keys[i] < heap[0]) {
+                heap[0] = keys[i];
+                siftDown(heap, 0, k);
+            }
+        }
+        Arrays.sort(heap);
+        return select(certificates, heap, k);
+    }
+
+    // Extracts the sort key of each certificate (see INDEX_BITS)
+    private static long[] extractKeys(List<Certificate> certificates) {
+        if (certificates.size() > INDEX_MASK) {
+            throw new IllegalArgumentException("[CertificateSorter] Too many certificates to sort: " + certificates.size());
+        }
+        long[] keys = new long[certificates.size()];
+        int i = 0;
+        for (Certificate certificate : certificates) {
+            keys[i] = (certificate.getExpiryDay() << INDEX_BITS) | i;
+            i++;
+        }
+        return keys;
+    }
+
+    private static boolean isSorted(long[] keys) {
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1] > keys[i]) return false;
+        }
+        return true;
+    }
+
+    // Rearranges `certificates` in place into the order given by the first `count` sorted keys
+    private static void reorder(List<Certificate> certificates, long[] keys, int count) {
+        List<Certificate> sorted = select(certificates, keys, count);
+        for (int i = 0; i < count; i++) {
+            certificates.set(i, sorted.get(i));
+        }
+    }
+
+    // Returns the certificates referred to by the first `count` keys, in key order
+    private static List<Certificate> select(List<Certificate> certificates, long[] keys, int count) {
+        // Copy into an array first so the lookups by index are O(1) whatever kind of List was passed
+        Certificate[] original = certificates.toArray(new Certificate[0]);
+        ArrayList<Certificate> selected = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            selected.add(original[(int) (keys[i] & INDEX_MASK)]);
+        }
+        return selected;
+    }
+
+    // Restores the max-heap property of the first `size` elements of `heap` below index `i`
+    private static void siftDown(long[] heap, int i, int size) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] > heap[largest]) largest = left;
+            if (right < size && heap[right] > heap[largest]) largest = right;
+            if (largest == i) return;
+            long swap = heap[i];
+            heap[i] = heap[largest];
+            heap[largest] = swap;
+            i = largest;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+    An immutable view of every certificate of a source, sorted by expiry date, as indexed by a DbConnection at one point in
+    time. Range queries over it are binary searches, so it can be queried freely without touching the database.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class CertificateView {
+    private final Certificate[] certificates;
+    private final long[] expiryDays;
+    private final String version;
+
+    // `certificates` sorted by expiry, alongside the day (since the epoch) on which each expires. Neither array may be modified
+    // afterwards.
+    CertificateView(Certificate[] certificates, long[] expiryDays, String version) {
+        this.certificates = certificates;
+        this.expiryDays = expiryDays;
+        this.version = version;
+    }
+
+    // Identifies the database snapshot and columns the view was built from, so it differs whenever the view's content may
+    public String getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return certificates.length;
+    }
+
+    // Position of the first certificate expiring on or after day `day` (since the epoch), or size() if there is none
+    public int indexOf(long day) {
+        return DbConnection.lowerBound(expiryDays, day);
+    }
+
+    // Certificate at position `index`, in order of expiry
+    public Certificate get(int index) {
+        return certificates[index];
+    }
+
+    // Certificates at positions [from, to), in order of expiry
+    public List<Certificate> subList(int from, int to) {
+        return Collections.unmodifiableList(Arrays.asList(certificates).subList(from, to));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+    Change-data-capture of the certificates matched by a source: keeps a compact on-disk snapshot of the previous run's
+    matches, and diffs each run against it so that only certificates which have changed since the last alert are sent.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+public class ChangeCapture {
+    // Identifies the snapshot file format, so a file from an incompatible version is ignored rather than misread
+    private static final int SNAPSHOT_MAGIC = 0x45534333;
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File file;
+
+    // The snapshot of the run being diffed, written by commit() once its alerts are safely queued, alongside the certificates
+    // it was taken of and the previous snapshot's entries
+    private List<Certificate> pendingCertificates;
+    private Map<Long, Long> previousEntries;
+    private long[] pendingIds;
+    private int[] pendingHashes;
+    private byte[] pendingLevels;
+
+    // Snapshots the matches of source `source` into directory `directory`, keying each certificate by its id (read from the
+    // change-capture "id-column")
+    public ChangeCapture(File directory, String source) {
+        this.file = new File(directory, Outbox.hostDirectoryName(source) + SNAPSHOT_SUFFIX);
+    }
+
+    // The difference between a run's matches and the previous run's
+    public static class Delta {
+        private List<Certificate> entered = new ArrayList<>();
+        private List<Certificate> escalated = new ArrayList<>();
+        private List<Certificate> changed = new ArrayList<>();
+        private List<Certificate> rows = new ArrayList<>();
+        private int renewed;
+        private boolean first;
+
+        // Certificates which entered the warning window since the previous run
+        public List<Certificate> getEntered() {
+            return Collections.unmodifiableList(entered);
+        }
+
+        // Certificates which escalated past another rule's threshold (or expired) since the previous run
+        public List<Certificate> getEscalated() {
+            return Collections.unmodifiableList(escalated);
+        }
+
+        // Certificates still at the same level, but whose name or expiry date has changed since the previous run
+        public List<Certificate> getChanged() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        // Every entered, escalated or changed certificate, in the order they were matched
+        public List<Certificate> getRows() {
+            return Collections.unmodifiableList(rows);
+        }
+
+        // Number of certificates matched by the previous run but not this one, i.e. renewed (or removed from the table)
+        public int getRenewed() {
+            return renewed;
+        }
+
+        // Whether there was no previous snapshot, in which case every certificate has entered
+        public boolean isFirst() {
+            return first;
+        }
+    }
+
+    // Diffs `certificates` (the run's matches, in the order they are to be listed) against the previous run's snapshot, using
+    // `rules` to level each certificate. The snapshot is only replaced once commit() is called.
+    // THROWS: IOException when failing to read the previous snapshot.
+    public Delta diff(List<Certificate> certificates, EscalationRules rules) throws IOException {
+        Map<Long, Long> previous = readSnapshot();
+        Delta delta = new Delta();
+        delta.first = previous == null;
+
+        int count = certificates.size();
+        pendingCertificates = certificates;
+        previousEntries = previous;
+        pendingIds = new long[count];
+        pendingHashes = new int[count];
+        pendingLevels = new byte[count];
+        int seen = 0;
+        for (int i = 0; i < count; i++) {
+            Certificate certificate = certificates.get(i);
+            long id = idHash(certificate.getId());
+            int hash = Objects.hash(certificate.getName(), certificate.getExpiryDay());
+            byte level = rules.levelOf(certificate.getExpiryDay());
+            pendingIds[i] = id;
+            pendingHashes[i] = hash;
+            pendingLevels[i] = level;
+
+            // Each snapshot entry packs the field hash into the high bits and the level into the low byte
+            Long entry = previous == null ? null : previous.get(id);
+            if (entry == null) {
+                delta.entered.add(certificate);
+            }
+            else {
+                seen++;
+                if (level > (byte) (long) entry) delta.escalated.add(certificate);
+                else if (hash != (int) (entry >> 8)) delta.changed.add(certificate);
+                else continue;
+            }
+            delta.rows.add(certificate);
+        }
+        delta.renewed = previous == null ? 0 : previous.size() - seen;
+        return delta;
+    }
+
+    // Replaces the snapshot with that of the run last diffed, as far as `sent` (those of its certificates whose alerts were
+    // queued): every other certificate keeps its previous entry, or stays out of the snapshot if it had none, so that it's
+    // reported again by the next run. Written to a temporary file first, then renamed, so a crash never leaves a partial
+    // snapshot.
+    // THROWS: IOException when failing to write the snapshot.
+    public void commit(List<Certificate> sent) throws IOException {
+        if (pendingIds == null) return;
+        Set<Certificate> sentSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        sentSet.addAll(sent);
+        // Each entry is the run's for a sent certificate, otherwise the previous run's (if any)
+        Long[] entries = new Long[pendingIds.length];
+        int count = 0;
+        for (int i = 0; i < pendingIds.length; i++) {
+            if (sentSet.contains(pendingCertificates.get(i))) {
+                entries[i] = ((long) pendingHashes[i] << 8) | (pendingLevels[i] & 0xFF);
+            }
+            else if (previousEntries != null) {
+                entries[i] = previousEntries.get(pendingIds[i]);
+            }
+            if (entries[i] != null) count++;
+        }
+
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(count);
+            for (int i = 0; i < pendingIds.length; i++) {
+                if (entries[i] == null) continue;
+                out.writeLong(pendingIds[i]);
+                out.writeInt((int) (entries[i] >> 8));
+                out.writeByte((byte) (long) entries[i]);
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        pendingCertificates = null;
+        previousEntries = null;
+        pendingIds = null;
+        pendingHashes = null;
+        pendingLevels = null;
+    }
+
+    // Reads the previous snapshot into a map from id hash to packed field hash and level, or returns null if there is none
+    private Map<Long, Long> readSnapshot() throws IOException {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) return null;
+            int count = in.readInt();
+            Map<Long, Long> entries = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                int hash = in.readInt();
+                byte level = in.readByte();
+                entries.put(id, ((long) hash << 8) | (level & 0xFF));
+            }
+            return entries;
+        }
+    }
+
+    // 64-bit FNV-1a hash of a certificate's id, so the snapshot holds a fixed 13 bytes per certificate whatever the id's type
+    private static long idHash(String id) {
+        String value = String.valueOf(id);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
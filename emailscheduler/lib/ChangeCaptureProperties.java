@@ -0,0 +1,54 @@
+/*
+    Typed, immutable snapshot of the "change-capture" settings within emailerProperties.json, which only alert on the
+    certificates that have changed since the previous run (see ChangeCapture).
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.DayOfWeek;
+
+public class ChangeCaptureProperties {
+    // Fields are populated by Gson, and never modified afterwards. Optional settings are null when absent.
+    @SerializedName("id-column")
+    private String idColumn;
+    @SerializedName("snapshot-dir")
+    private String snapshotDir;
+    @SerializedName("full-digest-day")
+    private String fullDigestDay;
+
+    // Checks the settings, so a missing id column or a misspelt full digest day is rejected on load rather than failing (or
+    // silently misreporting) every run
+    // THROWS: IOException when a setting is missing or invalid.
+    public void validate() throws IOException {
+        // Without it every certificate would share the same id, and so be reported as changed on every run
+        if (idColumn == null || idColumn.trim().isEmpty()) {
+            throw new IOException("[ChangeCaptureProperties] \"id-column\" must be set to the column uniquely identifying each certificate!");
+        }
+        if (fullDigestDay != null && RuleProperties.parseDay(fullDigestDay) == null) {
+            throw new IOException("[ChangeCaptureProperties] \"full-digest-day\" \"" + fullDigestDay + "\" is not a day of the week!");
+        }
+    }
+
+    // Column uniquely identifying each certificate
+    public String getIdColumn() {
+        return idColumn;
+    }
+
+    // Directory holding each source's snapshot, "snapshots" beside the JAR by default. When clustered, this should be storage
+    // shared by every instance.
+    public File getSnapshotDirectory() throws URISyntaxException {
+        if (snapshotDir != null) return new File(snapshotDir);
+        return new File(Data.getRunningDirectoryFile(), "snapshots");
+    }
+
+    // Day of the week (e.g. "MONDAY") on which every matched certificate is sent regardless of changes, or null for never
+    public DayOfWeek getFullDigestDay() {
+        return RuleProperties.parseDay(fullDigestDay);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+    Typed, immutable snapshot of the "cluster" settings within mainProperties.json, which run the scheduler on a shared JDBC
+    job store so that several instances can run together without each sending every alert.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.IOException;
+
+public class ClusterProperties {
+    // Fields are populated by Gson, and never modified afterwards. Optional settings are null when absent.
+    @SerializedName("driver")
+    private String driver;
+    @SerializedName("url")
+    private String url;
+    @SerializedName("user")
+    private String user;
+    @SerializedName("password")
+    private String password;
+    @SerializedName("instance-id")
+    private String instanceId;
+    @SerializedName("checkin-interval-ms")
+    private Long checkinIntervalMs;
+    @SerializedName("misfire-threshold-ms")
+    private Long misfireThresholdMs;
+    @SerializedName("claim-lease-ms")
+    private Long claimLeaseMs;
+
+    // Checks the job store's database is given, so an incomplete "cluster" block is rejected on load rather than failing
+    // when the scheduler is built
+    // THROWS: IOException when "driver" or "url" is missing.
+    public void validate() throws IOException {
+        if (driver == null || url == null) {
+            throw new IOException("[ClusterProperties] \"cluster\" must set both \"driver\" and \"url\"!");
+        }
+    }
+
+    // JDBC driver class and URL of the database holding the Quartz tables and the send ledger
+    public String getDriver() {
+        return driver;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUser() {
+        return user == null ? "" : user;
+    }
+
+    public String getPassword() {
+        return password == null ? "" : password;
+    }
+
+    // Unique id of this node, generated by Quartz by default
+    public String getInstanceId() {
+        return instanceId == null ? "AUTO" : instanceId;
+    }
+
+    // How often each node checks in, and so how soon a failed node's jobs are recovered by another
+    public long getCheckinIntervalMs() {
+        return checkinIntervalMs == null ? 5000 : checkinIntervalMs;
+    }
+
+    // How late a trigger may fire before it's considered misfired
+    public long getMisfireThresholdMs() {
+        return misfireThresholdMs == null ? 60000 : misfireThresholdMs;
+    }
+
+    // How long a recipient claimed (but not yet marked sent) in the send ledger stays claimed, after which another node may
+    // claim it again
+    public long getClaimLeaseMs() {
+        return claimLeaseMs == null ? 600000 : claimLeaseMs;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+    Holds the current snapshots of the main and emailer properties, loaded once and then reloaded atomically only when their
+    JSON files change on disk.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.omartanner.emailscheduler.Main;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+public class ConfigWatcher {
+    // Notified after the main properties have been reloaded
+    public interface Listener {
+        void mainPropertiesChanged(MainProperties previous, MainProperties current);
+    }
+
+    private File directory;
+
+    // Current snapshots, each replaced as a whole on reload, along with the modification time of the file each was loaded from
+    private volatile MainProperties mainProperties;
+    private volatile EmailerProperties emailerProperties;
+    private long mainLastModified;
+    private long emailerLastModified;
+
+    private List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watchService;
+
+    // Loads both properties files
+    // THROWS: IOException when failing to read or parse either file.
+    public ConfigWatcher() throws URISyntaxException, IOException {
+        directory = Data.getRunningDirectoryFile();
+        mainLastModified = fileIn(Data.MAIN_PROPERTIES_FILE).lastModified();
+        mainProperties = Data.loadMainProperties();
+        emailerLastModified = fileIn(Data.EMAILER_PROPERTIES_FILE).lastModified();
+        emailerProperties = Data.loadEmailerProperties();
+    }
+
+    public MainProperties getMainProperties() {
+        return mainProperties;
+    }
+
+    public EmailerProperties getEmailerProperties() {
+        return emailerProperties;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // Starts watching the properties files for changes on a daemon thread
+    // THROWS: IOException when failing to register the watch.
+    public void start() throws IOException {
+        watchService = directory.toPath().getFileSystem().newWatchService();
+        directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(this::watch, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Stops watching the properties files
+    public void stop() throws IOException {
+        if (watchService != null) watchService.close();
+    }
+
+    // Waits for changes to the running directory, reloading a properties file whenever it's created or modified
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) { // Events were lost, so check both files
+                        reloadMain();
+                        reloadEmailer();
+                        continue;
+                    }
+                    String fileName = ((Path) event.context()).getFileName().toString();
+                    if (fileName.equals(Data.MAIN_PROPERTIES_FILE)) reloadMain();
+                    else if (fileName.equals(Data.EMAILER_PROPERTIES_FILE)) reloadEmailer();
+                }
+                if (!key.reset()) break; // Directory no longer accessible
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    // Reloads the main properties if their file has actually changed, then notifies the listeners. A file that fails to
+    // load (e.g. whilst part way through being saved) leaves the current snapshot in place.
+    private void reloadMain() {
+        long lastModified = fileIn(Data.MAIN_PROPERTIES_FILE).lastModified();
+        if (lastModified == mainLastModified) return;
+        MainProperties previous = mainProperties;
+        try {
+            mainProperties = Data.loadMainProperties();
+            mainLastModified = lastModified;
+        }
+        catch (URISyntaxException | IOException e) {
+            log().warning("[ConfigWatcher] Failure to reload main properties, keeping previous! Error: " + e);
+            return;
+        }
+        log().info("[ConfigWatcher] Reloaded main properties.");
+        for (Listener listener : listeners) {
+            listener.mainPropertiesChanged(previous, mainProperties);
+        }
+    }
+
+    // Reloads the emailer properties if their file has actually changed. These are read afresh by each EmailerJob run, so
+    // there is no one to notify.
+    private void reloadEmailer() {
+        long lastModified = fileIn(Data.EMAILER_PROPERTIES_FILE).lastModified();
+        if (lastModified == emailerLastModified) return;
+        try {
+            emailerProperties = Data.loadEmailerProperties();
+            emailerLastModified = lastModified;
+        }
+        catch (URISyntaxException | IOException e) {
+            log().warning("[ConfigWatcher] Failure to reload emailer properties, keeping previous! Error: " + e);
+            return;
+        }
+        log().info("[ConfigWatcher] Reloaded emailer properties.");
+    }
+
+    private File fileIn(String fileName) {
+        return new File(directory, fileName);
+    }
+
+    private static Logger log() {
+        return Main.getLogger();
+    }
+}
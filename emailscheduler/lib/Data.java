@@ -6,53 +6,89 @@
 package com.omartanner.emailscheduler.lib;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
 import com.google.gson.stream.JsonReader;
 import com.omartanner.emailscheduler.Main;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
-import java.util.Map;
-import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 
 public class Data {
-    // Loads a JSON in the launch directory of the JAR
-    private static Map<String, Object> loadProperties(String fileName) throws URISyntaxException, FileNotFoundException {
+    // Name of the JSON files holding the main and emailer properties
+    public static final String MAIN_PROPERTIES_FILE = "mainProperties.json";
+    public static final String EMAILER_PROPERTIES_FILE = "emailerProperties.json";
+
+    // Handler of the Logger constructed by getNewLogger
+    private static AsyncLogHandler logHandler;
+
+    // Gson is thread-safe, so a single instance is shared by every load
+    private static final Gson gson = new Gson();
+
+    // Loads a JSON in the launch directory of the JAR into an instance of `type`
+    // THROWS: IOException when failing to read or parse the file.
+    private static <T> T loadProperties(String fileName, Class<T> type) throws URISyntaxException, IOException {
         File file = getRunningDirectoryFile().toPath().resolve(fileName).toFile();
-        final Type DATA_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
-        Gson gson = new Gson();
-        JsonReader reader = new JsonReader(new FileReader(file));
-        return gson.fromJson(reader, DATA_TYPE);
+        try (JsonReader reader = new JsonReader(new FileReader(file))) {
+            T properties = gson.fromJson(reader, type);
+            if (properties == null) {
+                throw new IOException("[Data] " + fileName + " is empty!");
+            }
+            return properties;
+        }
+        catch (JsonParseException e) { // Malformed JSON, e.g. if the file is part way through being written
+            throw new IOException("[Data] Failure to parse " + fileName + "!", e);
+        }
     }
 
     // Loads the JSON  in the directory of the JAR with name "mainProperties.json"
-    public static Map<String, Object> loadMainProperties() throws URISyntaxException, FileNotFoundException {
-        return loadProperties("mainProperties.json");
+    // THROWS: IOException when failing to read or parse the file, or it is missing a required setting.
+    public static MainProperties loadMainProperties() throws URISyntaxException, IOException {
+        MainProperties properties = loadProperties(MAIN_PROPERTIES_FILE, MainProperties.class);
+        properties.validate();
+        return properties;
     }
 
     // Loads the JSON  in the directory of the JAR with name "emailerProperties.json"
-    public static Map<String, Object> loadEmailerProperties() throws URISyntaxException, FileNotFoundException {
-        return loadProperties("emailerProperties.json");
+    // THROWS: IOException when failing to read or parse the file, or it is missing a required setting.
+    public static EmailerProperties loadEmailerProperties() throws URISyntaxException, IOException {
+        EmailerProperties properties = loadProperties(EMAILER_PROPERTIES_FILE, EmailerProperties.class);
+        properties.validate();
+        return properties;
     }
 
-    // Constructs a Logger at the launch directory of the JAR with name `logName` and returns the instance. Note file is logs.log.
+    // Obtains the outbox directory: `path` if given, otherwise "outbox" in the launch directory of the JAR
+    public static File getOutboxDirectory(String path) throws URISyntaxException {
+        if (path != null) return new File(path);
+        return new File(getRunningDirectoryFile(), "outbox");
+    }
+
+    // Constructs a Logger at the launch directory of the JAR with name `logName` and returns the instance. Note file is logs.log,
+    // written asynchronously as JSON lines (see AsyncLogHandler).
     public static Logger getNewLogger(String logName) throws URISyntaxException, IOException {
         Path path = getRunningDirectoryFile().toPath().resolve("logs.log");
         Logger log = Logger.getLogger(logName);
-        // Configure the logger with handler and formatter
-        FileHandler fh = new FileHandler(path.toString());
-        log.addHandler(fh);
+        // Configure the logger with handler
+        logHandler = new AsyncLogHandler(path.toFile());
+        log.addHandler(logHandler);
+        // Don't also pass every record synchronously to the root logger's console handler, which would undo the point of
+        // writing asynchronously
+        log.setUseParentHandlers(false);
         return log;
     }
 
+    // Applies the log truncation and rolling policy from the main properties to the Logger constructed above
+    public static void configureLogger(MainProperties properties) {
+        if (logHandler == null) return;
+        logHandler.configure(properties.getLogMaxMessageChars(), properties.getLogMaxFileBytes(),
+                properties.getLogRollIntervalMs(), properties.getLogMaxFiles());
+    }
+
     // Obtains a File object of the running directory of the JAR
-    private static File getRunningDirectoryFile() throws URISyntaxException {
+    static File getRunningDirectoryFile() throws URISyntaxException {
         return new File(Main.class.getProtectionDomain().getCodeSource().getLocation()
                 .toURI()).getParentFile();
     }
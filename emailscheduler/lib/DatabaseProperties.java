@@ -0,0 +1,60 @@
+/*
+    Typed, immutable snapshot of one database source within mainProperties.json.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.Objects;
+
+public class DatabaseProperties {
+    // Fields are populated by Gson (or the constructor below), and never modified afterwards
+    @SerializedName("name")
+    private String name;
+    @SerializedName("db-path")
+    private String dbPath;
+    @SerializedName("db-password")
+    private String dbPassword;
+    @SerializedName("page-cache-mb")
+    private Integer pageCacheMb;
+
+    public DatabaseProperties(String name, String dbPath, String dbPassword) {
+        this.name = name;
+        this.dbPath = dbPath;
+        this.dbPassword = dbPassword;
+    }
+
+    // Name of the source, which identifies its job and trigger
+    public String getName() {
+        return name;
+    }
+
+    public String getDbPath() {
+        return dbPath;
+    }
+
+    public String getDbPassword() {
+        return dbPassword;
+    }
+
+    // Megabytes of database pages to cache, counting both their encrypted and decrypted content (see CachingCodecProvider)
+    public int getPageCacheMb() {
+        return pageCacheMb == null ? DbConnection.DEFAULT_PAGE_CACHE_MB : pageCacheMb;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DatabaseProperties)) return false;
+        DatabaseProperties other = (DatabaseProperties) o;
+        return Objects.equals(name, other.name) && Objects.equals(dbPath, other.dbPath) && Objects.equals(dbPassword, other.dbPassword)
+                && Objects.equals(pageCacheMb, other.pageCacheMb);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, dbPath, dbPassword, pageCacheMb);
+    }
+}
@@ -1,63 +1,459 @@
 /*
-    A class that handles the connection to the database and obtains the relevant data (the certificates that shall expire soon)
+    A class that handles the connection to the database and obtains the relevant data (the certificates that shall expire soon).
+    Reads a private copy (snapshot) of the database file, taken whenever the file changes, so that a scan is never affected by
+    the file being rewritten part way through.
     Copyright © 2019 Omar Tanner
  */
 
 package com.omartanner.emailscheduler.lib;
 
 import com.healthmarketscience.jackcess.CryptCodecProvider;
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
 import com.healthmarketscience.jackcess.Database;
 import com.healthmarketscience.jackcess.DatabaseBuilder;
 import com.healthmarketscience.jackcess.Row;
-import com.healthmarketscience.jackcess.util.RowFilter;
+import com.healthmarketscience.jackcess.Table;
+import com.omartanner.emailscheduler.Main;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class DbConnection {
+    // Name of the certificates table, and of its expiry date column
+    private static final String CERTIFICATES_TABLE = "FIELD HIDDEN";
+    private static final String EXPIRY_COLUMN = "FIELD HIDDEN";
+    private static final String NAME_COLUMN = "certificateName";
+
+    // Fewest rows read by each partition of a parallel scan, below which opening another Database costs more than it saves
+    private static final int MIN_PARTITION_ROWS = 1 << 15;
+    // Sort keys pack a row's expiry into the high bits and its position into the low INDEX_BITS bits (see sortKey)
+    private static final int INDEX_BITS = 30;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    private static final long MAX_SECONDS = (1L << (63 - INDEX_BITS)) - 1;
+    private static final long MIN_SECONDS = -MAX_SECONDS - 1;
+    // Number of times to try copying the database file before giving up because it keeps changing
+    private static final int SNAPSHOT_ATTEMPTS = 3;
+    public static final int DEFAULT_PAGE_CACHE_MB = 64;
+
+    private File file;
     private Database db;
-    private RowFilter filter;
+
+    // The current snapshot of the database file, and the modification time and size of the file when it was taken
+    private File snapshot;
+    private long snapshotLastModified = -1;
+    private long snapshotLength = -1;
+    // The snapshot `db` was opened from, deleted once `db` moves on to a newer snapshot
+    private File openedSnapshot;
+    // The modification time and size of the file when the snapshot the index was built from was taken, only recorded once the
+    // index is built, so a failed rebuild is retried
+    private long indexedLastModified = -1;
+    private long indexedLength = -1;
+
+    // Set once closed, after which no further snapshot is taken
+    private boolean closed = false;
+
+    // Decrypted pages, shared by every Database opened of the snapshots
+    private CachingCodecProvider codecProvider;
+
+    // Expiry index over the certificates table: the certificates sorted by expiry date, alongside the day (since the epoch,
+    // see EscalationRules.epochDay) on which each expires
+    private Certificate[] indexedCertificates;
+    private long[] expiryDays;
+
+    // Optional columns read into each Certificate at the point the index was built (null when not read)
+    private String indexedOwnerColumn;
+    private String indexedIdColumn;
 
     // Throws: IOConnection when failing to connect to db.
     public DbConnection(String path, String password) throws IOException {
+        this(path, password, DEFAULT_PAGE_CACHE_MB, null, null);
+    }
+
+    // As above, caching up to `pageCacheMb` megabytes of decrypted pages, and also reading columns `ownerColumn` and `idColumn`
+    // (if not null) into the index, as getCertificates will ask for
+    // Throws: IOConnection when failing to connect to db.
+    public DbConnection(String path, String password, int pageCacheMb, String ownerColumn, String idColumn) throws IOException {
+        file = new File(path);
+        codecProvider = new CachingCodecProvider(new CryptCodecProvider("PASSWORD HIDDEN"), (long) pageCacheMb * 1024 * 1024);
+        // Snapshot and open the database and build the expiry index up front, so the first EmailerJob run is just a range query
+        if (!takeSnapshot()) {
+            throw new IOException("[DbConnection] " + file + " kept changing whilst being copied!");
+        }
+        try {
+            refreshIndex(ownerColumn, idColumn);
+        }
+        catch (IOException | RuntimeException e) { // Don't leave the snapshot behind
+            try {
+                close();
+            }
+            catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    // Obtains the certificates expiring within `withinDays` days of today, i.e. on an earlier day than today plus `withinDays`,
+    // with the values of columns `ownerColumn` and `idColumn` if not null
+    // Throws: IOException if ailed to obtain FIELD HIDDEN Table from database
+    public synchronized ArrayList<Certificate> getCertificates(int withinDays, String ownerColumn, String idColumn) throws IOException {
+        refresh(ownerColumn, idColumn);
+
+        // Since the expiry days are sorted, the matches are exactly the rows before the first expiry day that is at or after
+        // the boundary
+        int end = lowerBound(expiryDays, EscalationRules.epochDay(System.currentTimeMillis()) + withinDays);
+
+        Metrics.counter(Metrics.ROWS_MATCHED).add(end);
+
+        // Copy the matching prefix of the index into an ArrayList (already sorted such that the earliest to expire come first)
+        ArrayList<Certificate> data = new ArrayList<>(end);
+        data.addAll(Arrays.asList(indexedCertificates).subList(0, end));
+        return data;
+    }
+
+    // Obtains an immutable view of every certificate, as of the database file now, with the values of columns `ownerColumn`
+    // and `idColumn` if not null. The view may be kept and queried (e.g. by the QueryServer) without touching the database.
+    // Throws: IOException if ailed to obtain FIELD HIDDEN Table from database
+    public synchronized CertificateView getView(String ownerColumn, String idColumn) throws IOException {
+        refresh(ownerColumn, idColumn);
+        // The index arrays are replaced rather than modified when rebuilt, so may be shared. The version identifies the snapshot
+        // and columns they were built from.
+        String version = Long.toHexString(indexedLastModified) + "." + Long.toHexString(indexedLength) + "."
+                + Integer.toHexString(Objects.hash(ownerColumn, idColumn));
+        return new CertificateView(indexedCertificates, expiryDays, version);
+    }
+
+    // Closes the database and deletes its snapshots
+    // Throws: IOException when failing to close the database.
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+        if (openedSnapshot != null) Files.deleteIfExists(openedSnapshot.toPath());
+        if (snapshot != null) Files.deleteIfExists(snapshot.toPath());
+    }
+
+    // Rebuilds the index only if the database file has been modified since it was last snapshotted, the index isn't of the
+    // current snapshot (e.g. its rebuild failed), or different columns are needed. If the file is being modified so often that
+    // no copy of it is consistent, keeps using the previous snapshot.
+    private void refresh(String ownerColumn, String idColumn) throws IOException {
+        // A caller still holding the connection (e.g. a run during shutdown) mustn't leave a new snapshot behind
+        if (closed) throw new IOException("[DbConnection] " + file + " has been closed!");
+        if (file.lastModified() != snapshotLastModified || file.length() != snapshotLength) {
+            if (!takeSnapshot()) {
+                Main.getLogger().warning("[DbConnection] " + file + " kept changing whilst being copied! Using the copy from before.");
+            }
+        }
+        boolean rebuild = !Objects.equals(ownerColumn, indexedOwnerColumn) || !Objects.equals(idColumn, indexedIdColumn)
+                || snapshotLastModified != indexedLastModified || snapshotLength != indexedLength;
+        if (rebuild) {
+            refreshIndex(ownerColumn, idColumn);
+        }
+    }
+
+    // (Re)opens the database and rebuilds the expiry index from a single pass over the FIELD HIDDEN Table, reading just the
+    // columns needed (including `ownerColumn` and `idColumn` if not null) into a Certificate per row. Large tables are split into
+    // contiguous partitions of rows, each read on the fork-join pool through its own Database (since Jackcess is not
+    // thread-safe) and sorted, then the sorted partitions are merged. Each partition starts from a savepoint found by a single
+    // walk over the row headers, so no partition steps past the rows before it.
+    private void refreshIndex(String ownerColumn, String idColumn) throws IOException {
+        // Reopen the database if there's a newer snapshot of it (or the index is just being rebuilt for different columns)
+        if (db != null) {
+            db.close();
+            db = null;
+            if (!openedSnapshot.equals(snapshot)) {
+                Files.deleteIfExists(openedSnapshot.toPath());
+            }
+        }
+        db = open();
+        openedSnapshot = snapshot;
+        long lastModified = snapshotLastModified;
+        long length = snapshotLength;
+
+        long start = System.nanoTime();
+        Table table = db.getTable(CERTIFICATES_TABLE);
+        int rowCount = table.getRowCount();
+        if (rowCount > INDEX_MASK) {
+            throw new IOException("[DbConnection] Too many rows to index: " + rowCount);
+        }
+        // Use as many partitions as the pool has threads, provided each has enough rows to be worth opening another Database for
+        int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+        int partitions = Math.max(1, Math.min(parallelism, rowCount / MIN_PARTITION_ROWS));
+        int partitionRows = (rowCount + partitions - 1) / partitions;
+        Certificate[][] scanned = new Certificate[partitions][];
+        Projection projection = new Projection(ownerColumn, idColumn);
+        long[] keys;
+        if (partitions == 1) {
+            keys = scanPartition(scanned, 0, 1, null, partitionRows, projection);
+        }
+        else {
+            keys = scanPartitions(table, scanned, partitionRows, projection);
+        }
+
+        // Gather the certificates read by each partition, at the positions their sort keys refer to
+        int total = 0;
+        for (int i = 0; i < partitions; i++) {
+            total = Math.max(total, i * partitionRows + scanned[i].length);
+        }
+        final Certificate[] all = new Certificate[total];
+        for (int i = 0; i < partitions; i++) {
+            System.arraycopy(scanned[i], 0, all, i * partitionRows, scanned[i].length);
+        }
+
+        // Fill the index arrays from the sorted keys
+        final long[] sortedKeys = keys;
+        final Certificate[] certificates = new Certificate[keys.length];
+        long[] days = new long[keys.length];
+        Arrays.parallelSetAll(certificates, i -> all[(int) (sortedKeys[i] & INDEX_MASK)]);
+        Arrays.parallelSetAll(days, i -> certificates[i].getExpiryDay());
+
+        Metrics.counter(Metrics.ROWS_SCANNED).add(total);
+        Metrics.timer("index_build").recordSince(start);
+
+        indexedCertificates = certificates;
+        expiryDays = days;
+        indexedOwnerColumn = ownerColumn;
+        indexedIdColumn = idColumn;
+        indexedLastModified = lastModified;
+        indexedLength = length;
+    }
+
+    // Copies the database file to a new snapshot, unless it was modified whilst every attempt to copy it was in progress, in
+    // which case returns false and keeps the current snapshot
+    // THROWS: IOException when failing to copy the file.
+    private boolean takeSnapshot() throws IOException {
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            // Not deleteOnExit, which would keep every snapshot's name in memory until exit. Snapshots are deleted when replaced
+            // and on close, which Main does for every source on exit.
+            File copy = File.createTempFile("emailscheduler-", ".accdb");
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (file.lastModified() == lastModified && file.length() == length) {
+                // Replace the current snapshot, unless the Database is still open on it, in which case refreshIndex deletes it
+                if (snapshot != null && !snapshot.equals(openedSnapshot)) {
+                    Files.deleteIfExists(snapshot.toPath());
+                }
+                snapshot = copy;
+                snapshotLastModified = lastModified;
+                snapshotLength = length;
+                return true;
+            }
+            Files.deleteIfExists(copy.toPath());
+        }
+        return false;
+    }
+
+    // Opens (read only) the current snapshot of the database file
+    private Database open() throws IOException {
         // Construct Database object from DatabaseBuilder
-        db = new DatabaseBuilder(new File(path))
+        return new DatabaseBuilder(snapshot)
                 .setReadOnly(true)
-                .setCodecProvider(new CryptCodecProvider("PASSWORD HIDDEN"))
+                .setCodecProvider(codecProvider)
                 .open();
+    }
 
-        // Construct RowFilter to obtain certificates with the property
-        filter = new RowFilter() {
-            @Override
-            public boolean matches(Row row) {
-                // Obtain expiry date
-                Date expireDate = (Date) row.get("FIELD HIDDEN");
-                // Construct a Calendar object set to the date we wish to warn at, which is 3 months before expire date
-                Calendar warnCalendar = Calendar.getInstance();
-                warnCalendar.setTime(expireDate);
-                warnCalendar.add(Calendar.MONTH, -3);
+    // Reads every partition of `table` (the open Database's) in parallel, and returns their sort keys merged. The table is
+    // walked once through the open Database, only reading row headers, and each partition is started as soon as the walk
+    // reaches its first row.
+    private long[] scanPartitions(Table table, Certificate[][] scanned, int partitionRows, Projection projection)
+            throws IOException {
+        int partitions = scanned.length;
+        ScanTask[] tasks = new ScanTask[partitions];
+        long[][] keys = new long[partitions][];
+        try {
+            Cursor walker = CursorBuilder.createCursor(table);
+            for (int partition = 0; partition < partitions; partition++) {
+                // The walker is on the last row of the previous partition (or before the first row), from where the partition
+                // reads on
+                tasks[partition] = new ScanTask(scanned, partition, walker.getSavepoint(), partitionRows, projection);
+                tasks[partition].fork();
+                for (int i = 0; i < partitionRows; i++) {
+                    if (!walker.moveToNextRow()) break;
+                }
+            }
+        }
+        finally {
+            // Wait for every partition started, even after a failure, so none is left reading a Database that's replaced
+            UncheckedIOException failure = null;
+            for (int partition = 0; partition < partitions && tasks[partition] != null; partition++) {
+                try {
+                    keys[partition] = tasks[partition].join();
+                }
+                catch (UncheckedIOException e) { // Failure reading the partition
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure.getCause();
+        }
+        return mergeAll(keys, 0, partitions);
+    }
 
-                // Obtain Calendar of today#'s date
-                Calendar today = Calendar.getInstance();
+    // Reads partition `partition` (of `partitions`, each of `partitionRows` rows but the last, which reads to the end of the
+    // table) into scanned[partition], and returns the sort keys of its rows with an expiry date, sorted. The partition is read
+    // from savepoint `start`, or the start of the table if null. A table small enough for one partition is read through the
+    // already open Database, exactly as before; otherwise each partition opens its own.
+    private long[] scanPartition(Certificate[][] scanned, int partition, int partitions, Cursor.Savepoint start, int partitionRows,
+                                 Projection projection) throws IOException {
+        Database database = partitions == 1 ? db : open();
+        try {
+            Table table = database.getTable(CERTIFICATES_TABLE);
+            Cursor cursor = CursorBuilder.createCursor(table);
+            // Savepoints identify the table by its page, so one found through another Database of the same snapshot applies
+            if (start != null) cursor.restoreSavepoint(start);
+            long first = (long) partition * partitionRows;
 
-                // If today is after the warn date then we have exceeded the warning, thus it's a match, otherwise not a match (since before warn date)
-                return today.after(warnCalendar);
+            boolean last = partition == partitions - 1;
+            ArrayList<Certificate> certificates = new ArrayList<>(partitionRows);
+            long[] keys = new long[Math.max(partitionRows, 16)];
+            int count = 0;
+            // Share one String between the rows with equal names (or owners), rather than keeping a copy per row
+            Map<String, String> strings = new HashMap<>();
+            while ((last || certificates.size() < partitionRows) && cursor.moveToNextRow()) {
+                Row row = cursor.getCurrentRow(projection.columns);
+                // Skip rows without an expiry date, other than to keep their position
+                Date expireDate = (Date) row.get(EXPIRY_COLUMN);
+                if (expireDate == null) {
+                    certificates.add(null);
+                    continue;
+                }
+                long expiry = expireDate.getTime();
+                if (count == keys.length) keys = Arrays.copyOf(keys, count * 2);
+                keys[count++] = sortKey(expiry, first + certificates.size());
+                certificates.add(new Certificate(EscalationRules.epochDay(expiry), dedupe(strings, row.get(NAME_COLUMN)),
+                        projection.ownerColumn == null ? null : dedupe(strings, row.get(projection.ownerColumn)),
+                        projection.idColumn == null ? null : stringOf(row.get(projection.idColumn))));
             }
-        };
+            scanned[partition] = certificates.toArray(new Certificate[0]);
+
+            keys = Arrays.copyOf(keys, count);
+            Arrays.sort(keys);
+            return keys;
+        }
+        finally {
+            if (database != db) database.close();
+        }
     }
 
-    // Throws: IOException if ailed to obtain FIELD HIDDEN Table from database
-    public ArrayList<Row> getCertificates() throws IOException {
-        // Apply the filter to the FIELD HIDDEN Iterable of Rows
-        Iterable<Row> certificates = filter.apply(db.getTable("FIELD HIDDEN"));
-        // Now put results in an ArrayList (for easier usage, doesn't increase time complexity due to previous filter being O(n) already)
-        ArrayList<Row> data = new ArrayList<>();
-        for (Row certificate : certificates) {
-            data.add(certificate);
+    // Packs the expiry (in epoch seconds, clamped to the range that fits) into the high bits and the row's position into the
+    // low INDEX_BITS bits, so sorting the keys sorts the rows by expiry, keeping table order for those expiring in the same second
+    private static long sortKey(long expiry, long position) {
+        long seconds = Math.max(MIN_SECONDS, Math.min(MAX_SECONDS, Math.floorDiv(expiry, 1000L)));
+        return (seconds << INDEX_BITS) | position;
+    }
+
+    // Returns `value` as a String, sharing the String of any equal value seen before in `strings`
+    private static String dedupe(Map<String, String> strings, Object value) {
+        String string = stringOf(value);
+        if (string == null) return null;
+        String existing = strings.putIfAbsent(string, string);
+        return existing == null ? string : existing;
+    }
+
+    private static String stringOf(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    // Merges the sorted arrays `a` and `b` into one sorted array
+    private static long[] merge(long[] a, long[] b) {
+        long[] merged = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            merged[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+        }
+        while (i < a.length) merged[k++] = a[i++];
+        while (j < b.length) merged[k++] = b[j++];
+        return merged;
+    }
+
+    // Merges the sorted arrays `keys[from, to)` into one sorted array, pairwise so each key is copied log(to - from) times
+    private static long[] mergeAll(long[][] keys, int from, int to) {
+        if (to - from == 1) return keys[from];
+        int middle = (from + to) >>> 1;
+        return merge(mergeAll(keys, from, middle), mergeAll(keys, middle, to));
+    }
+
+    // Returns the index of the first element of the sorted array `values` that is >= `key` (values.length if there is none)
+    static int lowerBound(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Reads one partition of the table from its savepoint, on the fork-join pool
+    private class ScanTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Certificate[][] scanned;
+        private final int partition;
+        private final transient Cursor.Savepoint start;
+        private final int partitionRows;
+        private final transient Projection projection;
+        // Whether metrics were muted on the thread that forked this task (e.g. a warm-up), so they are whilst it runs too
+        private final boolean muted;
+
+        private ScanTask(Certificate[][] scanned, int partition, Cursor.Savepoint start, int partitionRows, Projection projection) {
+            this.scanned = scanned;
+            this.partition = partition;
+            this.start = start;
+            this.partitionRows = partitionRows;
+            this.projection = projection;
+            this.muted = Metrics.isMuted();
+        }
+
+        @Override
+        protected long[] compute() {
+            boolean wasMuted = Metrics.isMuted();
+            Metrics.setMuted(muted);
+            try {
+                return scanPartition(scanned, partition, scanned.length, start, partitionRows, projection);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                Metrics.setMuted(wasMuted);
+            }
+        }
+    }
+
+    // The columns read from each row: the expiry date and name, and the optional owner and id columns
+    private static class Projection {
+        private final String ownerColumn;
+        private final String idColumn;
+        private final Collection<String> columns = new LinkedHashSet<>();
+
+        private Projection(String ownerColumn, String idColumn) {
+            this.ownerColumn = ownerColumn;
+            this.idColumn = idColumn;
+            columns.add(EXPIRY_COLUMN);
+            columns.add(NAME_COLUMN);
+            if (ownerColumn != null) columns.add(ownerColumn);
+            if (idColumn != null) columns.add(idColumn);
         }
-        return data;
     }
 }
@@ -5,28 +5,54 @@
 
 package com.omartanner.emailscheduler.lib;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
 import javax.mail.*;
 import javax.mail.internet.*;
 
 public class EmailService {
+    // Default maximum number of SMTP connections that may be open at once
+    private static final int DEFAULT_POOL_SIZE = 4;
+
+    // Most recently obtained shared EmailService (see forServer)
+    private static EmailService shared;
+
     // SMTP details
     private String host = "";
     private int port = 0;
     private String username = "";
     private String password = "";
 
+    // Session shared by every message and connection of this EmailService
+    private Session session;
+
+    // Connected Transports that are currently idle, and permits bounding the number of connections open at once
+    private BlockingQueue<Transport> idleTransports;
+    private Semaphore connectionPermits;
+
+    // Set once close has been called, after which released connections are closed rather than pooled
+    private volatile boolean closed = false;
+
     // Constructor sets SMTP details
     public EmailService(String host, int port, String username, String password) {
+        this(host, port, username, password, DEFAULT_POOL_SIZE);
+    }
+
+    // Constructor sets SMTP details, and the maximum number of connections to the SMTP server that may be open at once
+    public EmailService(String host, int port, String username, String password, int poolSize) {
         this.host = host;
         this.port = port;
         this.username = username;
         this.password = password;
-    }
+        this.idleTransports = new ArrayBlockingQueue<>(poolSize);
+        this.connectionPermits = new Semaphore(poolSize);
 
-    // Sends an email to the emails separated by commas in `to`, from `from`, with subject `subject` and message `msg`.
-    // THROWS: MessagingException when failing to construct or send Message.
-    public void sendMail(String msg, String subject, String from, String to) throws MessagingException {
         // Configure properties for email sending, in which authentication shall occur but no TLS or SSL.
         Properties prop = new Properties();
         prop.put("mail.smtp.auth", true);
@@ -37,31 +63,161 @@ public class EmailService {
         prop.put("mail.smtp.ssl.trust", host);
 
         // Construct Session from an Authenticator which shall use PasswordAuthentication part of java.mail
-        Session session = Session.getInstance(prop, new Authenticator() {
+        session = Session.getInstance(prop, new Authenticator() {
             @Override
             protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(username, password);
+                return new PasswordAuthentication(EmailService.this.username, EmailService.this.password);
             }
         });
+    }
 
-        // Attempt to construct Message from input parameters and send.
+    // Returns an EmailService for the given SMTP details, reusing the previous one (and so its open connections) if the details
+    // are unchanged. Used by jobs, which would otherwise construct a new EmailService (and connect afresh) on every run.
+    public static synchronized EmailService forServer(String host, int port, String username, String password) {
+        if (shared == null || !shared.host.equals(host) || shared.port != port
+                || !shared.username.equals(username) || !shared.password.equals(password)) {
+            // SMTP details changed, so discard the old service's connections
+            if (shared != null) shared.close();
+            shared = new EmailService(host, port, username, password);
+        }
+        return shared;
+    }
 
+    public String getHost() {
+        return host;
+    }
+
+    // Sends an email to the emails separated by commas in `to`, from `from`, with subject `subject` and message `msg`.
+    // THROWS: MessagingException when failing to construct or send Message.
+    public void sendMail(String msg, String subject, String from, String to) throws MessagingException {
         // Construct Message
-        Message message = new MimeMessage(session);
-        message.setFrom(new InternetAddress(from));
-        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
-        message.setSubject(subject);
+        Message message = createMessage(msg, subject, from, to);
+
+        // Send Message
+        sendBatch(Collections.singletonList(message));
+    }
 
+    // Constructs an email to the emails separated by commas in `to`, from `from`, with subject `subject` and message `msg`,
+    // which may then be sent (along with others) via sendBatch.
+    // THROWS: MessagingException when failing to construct the Message.
+    public Message createMessage(String msg, String subject, String from, String to) throws MessagingException {
         MimeBodyPart mimeBodyPart = new MimeBodyPart();
         mimeBodyPart.setContent(msg, "text/html");
 
         Multipart multipart = new MimeMultipart();
         multipart.addBodyPart(mimeBodyPart);
 
-        message.setContent(multipart);
+        return createMessage(multipart, subject, from, to);
+    }
 
-        System.out.println("Trying...");
-        // Send Message
-        Transport.send(message);
+    // Constructs an email as above, but with the given content (e.g. streamed body parts from a MessageRenderer)
+    // THROWS: MessagingException when failing to construct the Message.
+    public Message createMessage(Multipart content, String subject, String from, String to) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(from));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(subject);
+        message.setContent(content);
+        return message;
+    }
+
+    // Reads back an email previously written out with Message.writeTo (e.g. by the Outbox), to be sent with this EmailService.
+    // Given a SharedInputStream (e.g. a SharedFileInputStream), only the headers are held in memory and the content is read
+    // from the stream as it's sent, so the stream must stay open until then.
+    // THROWS: MessagingException when failing to parse the Message.
+    public Message readMessage(InputStream in) throws MessagingException {
+        return new MimeMessage(session, in) {
+            // Keep the original Message-ID when the message is saved again before sending, so a retried email is recognisably
+            // the same email
+            @Override
+            protected void updateMessageID() throws MessagingException {
+                if (getHeader("Message-ID") == null) super.updateMessageID();
+            }
+        };
+    }
+
+    // Sends all of `messages` over a single pooled, authenticated connection, in order.
+    // THROWS: MessagingException when failing to connect or to send one of the messages, in which case the messages after it
+    // are not sent.
+    public void sendBatch(List<Message> messages) throws MessagingException {
+        Transport transport = borrowTransport();
+        boolean healthy = false;
+        try {
+            for (Message message : messages) {
+                long start = System.nanoTime();
+                message.saveChanges();
+                transport.sendMessage(message, message.getAllRecipients());
+                Metrics.timer(Metrics.SMTP_SEND).recordSince(start);
+            }
+            healthy = true;
+        }
+        finally {
+            // Only reuse the connection if every send succeeded, since a failure may have left it in an unknown state
+            releaseTransport(transport, healthy);
+        }
+    }
+
+    // Opens (or checks) a connection and returns it to the pool, so the next send needn't wait to connect
+    // THROWS: MessagingException when failing to connect.
+    public void warmUp() throws MessagingException {
+        releaseTransport(borrowTransport(), true);
+    }
+
+    // Closes every idle connection. Connections currently in use are closed when they are released.
+    public void close() {
+        closed = true;
+        List<Transport> transports = new ArrayList<>();
+        idleTransports.drainTo(transports);
+        for (Transport transport : transports) {
+            closeQuietly(transport);
+        }
+    }
+
+    // Obtains a connected Transport, reusing an idle one if it is still connected, otherwise connecting a new one. Blocks whilst
+    // the maximum number of connections are in use.
+    private Transport borrowTransport() throws MessagingException {
+        try {
+            connectionPermits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("[EmailService] Interrupted whilst waiting for an SMTP connection!", e);
+        }
+
+        try {
+            // Reuse idle connections, discarding any the server has since dropped
+            Transport transport;
+            while ((transport = idleTransports.poll()) != null) {
+                if (transport.isConnected()) return transport;
+                closeQuietly(transport);
+            }
+            // Otherwise open and authenticate a new connection (timed together, as JavaMail does both within connect)
+            long start = System.nanoTime();
+            transport = session.getTransport("smtp");
+            transport.connect(host, port, username, password);
+            Metrics.timer(Metrics.SMTP_CONNECT).recordSince(start);
+            return transport;
+        }
+        catch (MessagingException | RuntimeException e) {
+            connectionPermits.release();
+            throw e;
+        }
+    }
+
+    // Returns a borrowed Transport to the pool if it's healthy, otherwise closes it
+    private void releaseTransport(Transport transport, boolean healthy) {
+        if (!healthy || closed || !idleTransports.offer(transport)) {
+            closeQuietly(transport);
+        }
+        connectionPermits.release();
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        }
+        catch (MessagingException e) {
+            // Connection is being discarded anyway
+        }
     }
-}
\ No newline at end of file
+}
@@ -5,21 +5,42 @@
 
 package com.omartanner.emailscheduler.lib;
 
-import com.healthmarketscience.jackcess.Row;
 import com.omartanner.emailscheduler.Main;
+import org.quartz.DisallowConcurrentExecution;
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
 
 import javax.mail.MessagingException;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.time.*;
-import java.time.temporal.ChronoUnit;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+// Never run twice at once for the same source, even across the nodes of a cluster
+@DisallowConcurrentExecution
 public class EmailerJob implements Job {
+    // Key within the JobDataMap of the name of the database source the job sends alerts for
+    public static final String SOURCE_KEY = "source";
+    // Key within the JobExecutionContext of the run's StageDurations, recorded by the EmailerJobListener
+    public static final String STAGE_DURATIONS_KEY = "stage-durations";
+    // Reason recorded in the result of a change-capture run which had nothing new to send
+    public static final String NO_CHANGES = "no-changes";
+    // Reason recorded in the result of a run on a day none of the rules send on
+    public static final String NO_RULES_DUE = "no-rules-due";
+    // Summary shown above the list of a change-capture email
+    private static final String CHANGED_ONLY = "Only certificates which are new, escalated or changed since the last alert are listed.";
+
+    // Duration in milliseconds of each stage of a run, by stage name, in the order they ran. A class of its own so that the
+    // listener can check its type on reading it back from the JobExecutionContext.
+    public static class StageDurations extends LinkedHashMap<String, Long> {
+        private static final long serialVersionUID = 1L;
+    }
+
     // Empty constructor required by all Quartz Job implementers
     public EmailerJob() {
 
@@ -29,115 +50,307 @@ public class EmailerJob implements Job {
         // Set the JobExecutionContext result to 0 indicating failure so far
         context.setResult(0);
 
-        // Obtain emailer properties JSON
-        Map<String, Object> properties = null;
+        // Record each stage's duration as the run progresses, so they're available to the listener even if a stage fails
+        StageDurations stages = new StageDurations();
+        context.put(STAGE_DURATIONS_KEY, stages);
+        long stageStart = System.nanoTime();
+
+        // Obtain the current emailer properties, as loaded (or last reloaded) from the JSON
+        EmailerProperties properties = Main.getConfig().getEmailerProperties();
+
+        // Obtain the database source this job is for, and the id of this run of it
+        String source = context.getMergedJobDataMap().getString(SOURCE_KEY);
+        String runId = runIdOf(context, source);
+        // Obtain the ledger used to avoid sending this run's emails twice across a cluster (null when not clustered)
+        SendLedger ledger = Main.getSendLedger();
+
+        // Obtain today's instant once for the whole run, and the escalation rules as of today
+        final long today = System.currentTimeMillis();
+        EscalationRules rules = new EscalationRules(properties.getRules(), today);
+
+        // Obtain the certificates within the widest rule's threshold from the source's DbConnection, opened by Main on first
+        // use. The narrower rules' certificates are a subset of these, so the database is scanned once whatever the rules.
+        ArrayList<Certificate> certificates = null;
         try {
-            properties = Data.loadEmailerProperties();
+            certificates = Main.getDbConnection(source).getCertificates(rules.getMaxDays(), properties.getOwnerColumn(),
+                    properties.getIdColumn());
+            stageStart = endStage(stages, "scan", stageStart);
         }
-        catch (URISyntaxException | FileNotFoundException e) { // Failure loading emailer properties
-            throw new JobExecutionException("[EmailerJob] Failure to load emailer JSON properties! Stack trace: " + e.getStackTrace(), e);
+        catch (IOException e) { // Failure querying database for the certificates
+            throw new JobExecutionException("[EmailerJob] Failure to query database for certificates! Stack trace: " + e.getStackTrace(), e);
+        }
+        // Obtain the change-data-capture settings (null unless only changed certificates are to be sent)
+        ChangeCaptureProperties captureProperties = properties.getChangeCapture();
+
+        // Now sort the certificates, such that the earliest to expire come first, keeping just the soonest "max-certificates"
+        // to expire if configured. In change-capture mode every match is kept until diffed, since all are snapshotted.
+        Integer maxCertificates = properties.getMaxCertificates();
+        if (maxCertificates != null && captureProperties == null) {
+            certificates = new ArrayList<>(CertificateSorter.soonest(certificates, maxCertificates));
+        }
+        else {
+            CertificateSorter.sort(certificates);
+        }
+        stageStart = endStage(stages, "sort", stageStart);
+
+        // In change-capture mode, narrow the certificates to those which have changed since the previous run, unless a full
+        // digest is due
+        ChangeCapture capture = null;
+        String summary = null;
+        if (captureProperties != null) {
+            ChangeCapture.Delta delta;
+            try {
+                capture = new ChangeCapture(captureProperties.getSnapshotDirectory(), source);
+                delta = capture.diff(certificates, rules);
+            }
+            catch (IOException | URISyntaxException e) { // Failure reading the previous snapshot
+                throw new JobExecutionException("[EmailerJob] Failure to read certificate snapshot! Stack trace: " + e.getStackTrace(), e);
+            }
+            DayOfWeek fullDigestDay = captureProperties.getFullDigestDay();
+            boolean fullDigest = delta.isFirst() || (fullDigestDay != null && LocalDate.now().getDayOfWeek() == fullDigestDay);
+            if (!fullDigest) {
+                // Nothing new, escalated or changed (at most some certificates were renewed), so there's nothing to send.
+                // The snapshot is still replaced, so renewed certificates are reported as new should they match again.
+                if (delta.getRows().isEmpty()) {
+                    endStage(stages, "diff", stageStart);
+                    commitQuietly(capture, Collections.<Certificate>emptyList());
+                    HashMap<String, String> skipInfo = new HashMap<>();
+                    skipInfo.put("source", source);
+                    skipInfo.put("run", runId);
+                    skipInfo.put("certificates", Integer.toString(certificates.size()));
+                    skipInfo.put("skipped", NO_CHANGES);
+                    context.setResult(skipInfo);
+                    return;
+                }
+                certificates = new ArrayList<>(delta.getRows());
+                summary = summarise(delta);
+            }
+            if (maxCertificates != null && certificates.size() > maxCertificates) {
+                certificates = new ArrayList<>(certificates.subList(0, Math.max(maxCertificates, 0)));
+            }
+            stageStart = endStage(stages, "diff", stageStart);
         }
 
-        // Obtain SMTP host, port, username and password from emailer properties
-        String host = (String) properties.get("host");
-        Integer port = ((Double) properties.get("port")).intValue();
-        String username = (String) properties.get("username");
-        String password = (String) properties.get("password");
+        // Obtain email service, reusing its pooled SMTP connections across runs
+        EmailService emailer = EmailService.forServer(properties.getHost(), properties.getPort(),
+                properties.getUsername(), properties.getPassword());
 
-        // Obtain DbConnection constructed in Main
-        DbConnection connection = Main.getDbConnection();
+        // Obtain from parameter from emailer properties JSON
+        final String from = properties.getSender();
 
-        // Obtain certificates with property from the DbConnection object
-        ArrayList<Row> certificates = null;
+        // Obtain the cap on certificates listed inline, above which the full list is attached instead (-1 for no cap)
+        final int inlineLimit = properties.getDigestInlineLimit();
+
+        // Queue the emails of each rule due today, listing the certificates within its threshold to its recipients. The
+        // widest rule always sends (as a single rule always did), whereas the narrower rules only send when they have
+        // certificates to list. The result records each rule's emails, by rule name.
+        DayOfWeek weekday = LocalDate.now().getDayOfWeek();
+        String ownerColumn = properties.getOwnerColumn();
+        LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+        // Each rule's certificates are the soonest to expire, so those sent by any rule are the first `sentCount`
+        int sentCount = 0;
         try {
-            certificates = connection.getCertificates();
+            for (RuleProperties rule : rules.getRules()) {
+                if (!rule.isDueOn(weekday)) continue;
+                List<Certificate> ruleCertificates = rules.within(certificates, rule);
+                if (ruleCertificates.isEmpty() && rule.getDays() < rules.getMaxDays()) continue;
+
+                // Obtain to parameter from the rule, or failing that the emailer properties JSON
+                List<String> recipients = rule.getRecipients() != null ? rule.getRecipients() : properties.getRecipients();
+                // Each rule's emails are claimed in the ledger separately, since rules may share recipients
+                String ruleRunId = runId + "/" + rule.getName();
+
+                // If an owner column is configured, send each owner only the certificates they own
+                if (ownerColumn != null) {
+                    fanOut(results, rule, properties, emailer, source, ruleRunId, scheduledFireTimeOf(context), ledger,
+                            ruleCertificates, from, recipients, today, inlineLimit, summary == null ? null : CHANGED_ONLY);
+                }
+                else {
+                    queue(results, rule, emailer, source, ruleRunId, ledger, ruleCertificates, from, recipients, today,
+                            inlineLimit, summary);
+                }
+                sentCount = Math.max(sentCount, ruleCertificates.size());
+            }
         }
-        catch (IOException e) { // Failure querying database for the certificates
-            throw new JobExecutionException("[EmailerJob] Failure to query database for certificates! Stack trace: " + e.getStackTrace(), e);
+        finally {
+            endStage(stages, "queue", stageStart);
+            // Set the JobExecutionContext to the results so far, so they're logged whether or not every rule's sends succeeded
+            if (!results.isEmpty()) context.setResult(results);
         }
 
-        // Now sort the certificates, such that the earliest to expire come first
-        sortCertificates(certificates);
+        // No rule was due today
+        if (results.isEmpty()) {
+            HashMap<String, String> skipInfo = new HashMap<>();
+            skipInfo.put("source", source);
+            skipInfo.put("run", runId);
+            skipInfo.put("skipped", NO_RULES_DUE);
+            context.setResult(skipInfo);
+        }
 
-        // Build the email message string from the input sorted certificates
-        String msg = buildMessage(certificates);
+        // Every email was queued (or already sent by another node), so the next run diffs against this one, except for the
+        // certificates no email listed (e.g. past "max-certificates", or only within the threshold of a rule not due today)
+        commitQuietly(capture, certificates.subList(0, sentCount));
+    }
 
-        // Construct email service
-        EmailService emailer = new EmailService(host, port, username, password);
+    // Queues a single email of `certificates` to all of `recipients` for rule `rule`, recording its info in `results`
+    private void queue(Map<String, Object> results, RuleProperties rule, EmailService emailer, String source, String runId,
+                       SendLedger ledger, List<Certificate> certificates, String from, List<String> recipients, long today,
+                       int inlineLimit, String summary)
+            throws JobExecutionException {
+        // Construct the renderer for the sorted certificates, which streams the message as it is sent
+        MessageRenderer renderer = new MessageRenderer(certificates, today, rule.getDays(), inlineLimit);
+        renderer.setSummary(summary);
 
-        // Obtain from and to parameters from emailer properties JSON
-        String from = (String) properties.get("sender");
-        ArrayList<String> recipients = (ArrayList<String>) properties.get("recipients");
         // Format recipients into a single string separated by commas
         String to = String.join(",", recipients);
-        // Obtain count of certificates
-        int certCount = certificates.size();
         // Construct subject
-        String certsWord = (certCount == 1) ? "Certificate" : "Certificates";
-        String subject = "Product Compliance Alert: " + certCount + " Expiring " + certsWord;
-        // Send the email
+        String subject = buildSubject(certificates.size());
+        // Claim the send in the ledger, unless another node has already sent this run's email
         try {
-            emailer.sendMail(msg, subject, from, to);
+            if (ledger != null && !ledger.claim(runId, to)) {
+                HashMap<String, String> skipInfo = new HashMap<>();
+                skipInfo.put("source", source);
+                skipInfo.put("run", runId);
+                skipInfo.put("skipped", FanOutSender.ALREADY_SENT);
+                results.put(rule.getName(), skipInfo);
+                return;
+            }
+        }
+        catch (SQLException e) { // Failure querying the ledger, so don't risk sending twice
+            throw new JobExecutionException("[EmailerJob] Failure to claim send in ledger! Stack trace: " + e.getStackTrace(), e);
+        }
+        // Write the email to the outbox, from which the dispatcher sends it (retrying if need be) off this worker thread
+        try {
+            Main.getOutbox().enqueue(emailer, emailer.createMessage(renderer.toMultipart(), subject, from, to));
+            if (ledger != null) ledger.markSent(runId, to);
+        }
+        catch (MessagingException | IOException e) { // Failure to write email, so give up the claim for a retry of the run
+            releaseQuietly(ledger, runId, to);
+            throw new JobExecutionException("[EmailerJob] Failure to write email to outbox! Stack trace: " + e.getStackTrace(), e);
         }
-        catch (MessagingException e) { // Failure to send email
-            throw new JobExecutionException("[EmailerJob] Failure to send email! Stack trace: " + e.getStackTrace(), e);
+        catch (SQLException e) { // Written, but failure to record it
+            throw new JobExecutionException("[EmailerJob] Wrote email to outbox but failed to record it in ledger! Stack trace: " + e.getStackTrace(), e);
         }
 
-        // Store message info in a HashMap
+        // Store message info in a HashMap. The body is not kept, since it was streamed rather than held in memory.
         HashMap<String, String> msgInfo = new HashMap<>();
+        msgInfo.put("source", source);
         msgInfo.put("subject", subject);
         msgInfo.put("from", from);
         msgInfo.put("to", to);
-        msgInfo.put("message-body", msg);
-        // Set the JobExecutionContext to the sent message information indicating success
-        context.setResult(msgInfo);
+        msgInfo.put("certificates", Integer.toString(certificates.size()));
+        msgInfo.put("digest", Boolean.toString(renderer.isDigest()));
+        msgInfo.put("queued", "true");
+        if (summary != null) msgInfo.put("changes", summary);
+        results.put(rule.getName(), msgInfo);
     }
 
-    // Sort input certificates, such that the earliest to expire come first
-    private void sortCertificates(ArrayList<Row> certificates) {
-        Collections.sort(certificates, new Comparator<Row>() {
-                    // c1 > c2 if expiry date of c1 is after c2's
-                    @Override
-                    public int compare(Row c1, Row c2) {
-                        Date expiry1 = (Date) c1.get("certificateExpireDate");
-                        Date expiry2 = (Date) c2.get("certificateExpireDate");
-                        // Same data means 0 for same
-                        if (expiry1.equals(expiry2)) return 0;
-                        // Expiry of cert 1 > expiry of cert2 means c1 > c2
-                        if (expiry1.after(expiry2)) return 1;
-                        // Otherwise cert 1 expires before cert2 so is smaller
-                        return -1;
-                    }
-                }
-        );
+    // Groups the certificates by owner and concurrently queues an email to each group's recipients of just their certificates,
+    // spread over the "delivery-window-minutes" after `windowStart`
+    private void fanOut(Map<String, Object> results, final RuleProperties rule, EmailerProperties properties, final EmailService emailer,
+                        String source, String runId, long windowStart, SendLedger ledger, List<Certificate> certificates,
+                        final String from, List<String> recipients, final long today, final int inlineLimit, final String summary)
+            throws JobExecutionException {
+        // Group the (sorted) certificates by the recipients of their owner
+        Map<String, List<Certificate>> groups = FanOutSender.groupByOwner(certificates, properties.getOwnerRecipients(), recipients);
+
+        // Render a message per group into the outbox, within the in-flight bound from emailer properties
+        FanOutSender sender = new FanOutSender(Main.getOutbox(), emailer, properties.getMaxInFlight(), windowStart,
+                TimeUnit.MINUTES.toMillis(properties.getDeliveryWindowMinutes()));
+        Map<String, String> outcomes;
+        try {
+            outcomes = sender.send(groups, (to, group) -> {
+                MessageRenderer renderer = new MessageRenderer(group, today, rule.getDays(), inlineLimit);
+                renderer.setSummary(summary);
+                return emailer.createMessage(renderer.toMultipart(), buildSubject(group.size()), from, to);
+            }, ledger, runId);
+        }
+        catch (InterruptedException e) { // Interrupted whilst waiting for the messages to be written
+            Thread.currentThread().interrupt();
+            throw new JobExecutionException("[EmailerJob] Interrupted whilst writing emails to outbox! Stack trace: " + e.getStackTrace(), e);
+        }
+
+        // Store a summary of the sends, and each failure, in a HashMap
+        HashMap<String, String> failures = new HashMap<>();
+        int skipped = 0;
+        for (Map.Entry<String, String> outcome : outcomes.entrySet()) {
+            if (FanOutSender.ALREADY_SENT.equals(outcome.getValue())) skipped++;
+            else if (outcome.getValue() != null) failures.put(outcome.getKey(), outcome.getValue());
+        }
+        HashMap<String, Object> fanOutInfo = new HashMap<>();
+        fanOutInfo.put("source", source);
+        fanOutInfo.put("from", from);
+        fanOutInfo.put("certificates", certificates.size());
+        fanOutInfo.put("run", runId);
+        fanOutInfo.put("messages-queued", outcomes.size() - failures.size() - skipped);
+        fanOutInfo.put("messages-skipped", skipped);
+        fanOutInfo.put("messages-failed", failures.size());
+        fanOutInfo.put("failures", failures);
+        // Record the summary, so it's logged whether or not every send succeeded
+        results.put(rule.getName(), fanOutInfo);
+
+        if (!failures.isEmpty()) {
+            throw new JobExecutionException("[EmailerJob] Failure to write " + failures.size() + " of " + outcomes.size() + " emails to outbox!");
+        }
+    }
+
+    // Records the duration of stage `name`, which started at `startNanos`, and returns the start of the next stage
+    private static long endStage(Map<String, Long> stages, String name, long startNanos) {
+        long now = System.nanoTime();
+        stages.put(name, TimeUnit.NANOSECONDS.toMillis(now - startNanos));
+        return now;
     }
 
-    // Build the email message string
-    private String buildMessage(ArrayList<Row> certificates) {
-        // Initialise builder
-        StringBuilder builder = new StringBuilder();
-        // Now construct HTML message
-        builder.append("<p>The following certificates have been found to expire within <b>3</b> months:</p><ul>");
-        for (Row certificate : certificates) {
-            // Obtain expiry Instant for the certificate
-            Instant expiry = ((Date) certificate.get("certificateExpireDate")).toInstant();
-            // Obtain instant for today
-            Instant today = new Date().toInstant();
-            // Obtain number of days between certificate expiry instant and today
-            long totalDays = ChronoUnit.DAYS.between(today, expiry);
-            // Compute week + days from total days
-            long weeks = totalDays / 7;
-            long days = totalDays % 7;
-            // Format certificate info
-            String certificateData = weeks + " weeks, " + days + " days";
-            String certificateName = certificate.getString("certificateName");
-            builder.append("<li><p><b>");
-            builder.append(certificateName);
-            builder.append("</b> - ");
-            builder.append(certificateData);
-            builder.append("</p></li>");
-        }
-        builder.append("</ul>");
-        return builder.toString();
+    // Identifies this run of the job across the cluster: its source and the time its trigger was scheduled to fire, which a
+    // run recovering from a failed node shares with the original run
+    private static String runIdOf(JobExecutionContext context, String source) {
+        return source + "@" + scheduledFireTimeOf(context);
+    }
+
+    // The time (in epoch milliseconds) this run's trigger was scheduled to fire, which a run recovering from a failed node
+    // shares with the original run
+    private static long scheduledFireTimeOf(JobExecutionContext context) {
+        long fireTime = context.getScheduledFireTime() != null ? context.getScheduledFireTime().getTime() : context.getFireTime().getTime();
+        if (context.isRecovering()) {
+            String original = context.getMergedJobDataMap().getString(Scheduler.FAILED_JOB_ORIGINAL_TRIGGER_SCHEDULED_FIRETIME_IN_MILLISECONDS);
+            if (original != null) fireTime = Long.parseLong(original);
+        }
+        return fireTime;
+    }
+
+    // Gives up a claim in the ledger after failing to queue an email. A failure to do so only delays a retry until the claim's lease expires.
+    private static void releaseQuietly(SendLedger ledger, String runId, String to) {
+        if (ledger == null) return;
+        try {
+            ledger.release(runId, to);
+        }
+        catch (SQLException e) {
+            Main.getLogger().warning("[EmailerJob] Failure to release claim in ledger! Error: " + e);
+        }
+    }
+
+    // Replaces the snapshot diffed by this run as far as the certificates `sent`, now that their emails are queued. A failure
+    // to do so only means the next run sends the same changes again.
+    private static void commitQuietly(ChangeCapture capture, List<Certificate> sent) {
+        if (capture == null) return;
+        try {
+            capture.commit(sent);
+        }
+        catch (IOException e) {
+            Main.getLogger().warning("[EmailerJob] Failure to write certificate snapshot! Error: " + e);
+        }
+    }
+
+    // Describes the changes since the previous run, shown above the list of a change-capture email
+    private static String summarise(ChangeCapture.Delta delta) {
+        return CHANGED_ONLY + " <b>" + delta.getEntered().size() + "</b> new, <b>" + delta.getEscalated().size()
+                + "</b> escalated (moved to a tighter rule, or expired) and <b>" + delta.getChanged().size() + "</b> changed; <b>"
+                + delta.getRenewed() + "</b> no longer expiring soon.";
+    }
+
+    // Build the email subject for a message listing `certCount` certificates
+    public static String buildSubject(int certCount) {
+        String certsWord = (certCount == 1) ? "Certificate" : "Certificates";
+        return "Product Compliance Alert: " + certCount + " Expiring " + certsWord;
     }
 }
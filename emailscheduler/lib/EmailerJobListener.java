@@ -5,14 +5,22 @@
 
 package com.omartanner.emailscheduler.lib;
 
+import com.google.gson.Gson;
 import com.omartanner.emailscheduler.Main;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.quartz.JobListener;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class EmailerJobListener implements JobListener {
+    // Gson used to format the structured events (thread-safe)
+    private static final Gson gson = new Gson();
+
     // Logger from Main
     private Logger log;
 
@@ -31,23 +39,53 @@ public class EmailerJobListener implements JobListener {
     // Just before the EmailerJob is excuted
     public void jobToBeExecuted(JobExecutionContext context) {
         // Obtain Logger from Main and log the execution
-        log.warning("[EmailerJobListener] Beginning execution of an EmailerJob! Attempt count: " + context.getRefireCount());
+        log.warning("[EmailerJobListener] Beginning execution of an EmailerJob for " + sourceOf(context) + "! Attempt count: " + context.getRefireCount());
     }
 
     public void jobWasExecuted(JobExecutionContext context,
                                JobExecutionException jobException) {
+        // Log how long the run for this source took, whether or not it succeeded
+        log.info("[EmailerJobListener] EmailerJob for " + sourceOf(context) + " ran for " + context.getJobRunTime() + "ms");
+
+        // Record the run's stage durations as metrics and as a structured event, so slowdowns can be alerted on without
+        // parsing the free text above
+        Object recorded = context.get(EmailerJob.STAGE_DURATIONS_KEY);
+        EmailerJob.StageDurations stages = recorded instanceof EmailerJob.StageDurations
+                ? (EmailerJob.StageDurations) recorded : new EmailerJob.StageDurations();
+        for (Map.Entry<String, Long> stage : stages.entrySet()) {
+            Metrics.timer(Metrics.STAGE_PREFIX + stage.getKey()).record(TimeUnit.MILLISECONDS.toNanos(stage.getValue()));
+        }
+        Metrics.timer(Metrics.STAGE_PREFIX + "total").record(TimeUnit.MILLISECONDS.toNanos(context.getJobRunTime()));
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("event", "emailer-run");
+        event.put("source", sourceOf(context));
+        event.put("fire-time", context.getFireTime().getTime());
+        event.put("run-ms", context.getJobRunTime());
+        event.put("success", jobException == null);
+        event.put("stage-ms", stages);
+        log.info("[EmailerJobListener] EVENT " + gson.toJson(event));
+
         // Job result equal to 0 if not successful, if so log the error
         if (context.getResult().equals(0)) { // Failure
-            log.severe("[EmailerJobListener] FAILURE - Failed to send email! Proceeding to log error!");
+            log.severe("[EmailerJobListener] FAILURE - Failed to queue email! Proceeding to log error!");
+            log.log(Level.SEVERE, "[ERROR STRING] " + jobException.toString(), jobException);
+        }
+        else if (jobException != null) { // Partial failure, e.g. some of a fan-out's sends failed, so log the error and the result
+            log.severe("[EmailerJobListener] FAILURE - Failed to queue some emails! Proceeding to log error!");
             log.severe("[ERROR STRING] " + jobException.toString());
-            log.severe("[STACK TRACE] " + jobException.getStackTrace());
+            log.severe("[EmailerJobListener] RESULT: " + context.getResult().toString());
         }
-        else  { // Otherwise successfully sent, so obtain the result which is a HashMap of the message info and log it
-            log.info("[EmailerJobListener] SUCCESS - Successfully sent email!");
-            log.info("[EmailerJobListener] SENT MESSAGE INFO: " + context.getResult().toString());
+        else  { // Otherwise successfully queued for sending, so obtain the result which is a HashMap of the message info and log it
+            log.info("[EmailerJobListener] SUCCESS - Successfully queued email!");
+            log.info("[EmailerJobListener] QUEUED MESSAGE INFO: " + context.getResult().toString());
         }
     }
 
+    // Name of the database source the EmailerJob in `context` is for
+    private static String sourceOf(JobExecutionContext context) {
+        return context.getMergedJobDataMap().getString(EmailerJob.SOURCE_KEY);
+    }
+
     public void jobExecutionVetoed(JobExecutionContext context) {
         // do something with the event
     }
@@ -0,0 +1,179 @@
+/*
+    Typed, immutable snapshot of emailerProperties.json.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class EmailerProperties {
+    // Fields are populated by Gson, and never modified afterwards. Optional settings are null when absent, and required
+    // settings are checked by validate.
+
+    // SMTP details
+    @SerializedName("host")
+    private String host;
+    @SerializedName("port")
+    private Integer port;
+    @SerializedName("username")
+    private String username;
+    @SerializedName("password")
+    private String password;
+
+    @SerializedName("sender")
+    private String sender;
+    @SerializedName("recipients")
+    private List<String> recipients;
+
+    // Per-owner fan-out (see FanOutSender)
+    @SerializedName("owner-column")
+    private String ownerColumn;
+    @SerializedName("owner-recipients")
+    private Map<String, List<String>> ownerRecipients;
+    @SerializedName("max-in-flight")
+    private Integer maxInFlight;
+
+    // Send rate limits and spreading (see OutboxDispatcher and TokenBucket)
+    @SerializedName("max-sends-per-second")
+    private Double maxSendsPerSecond;
+    @SerializedName("max-sends-per-second-per-sender")
+    private Double maxSendsPerSecondPerSender;
+    @SerializedName("send-burst")
+    private Integer sendBurst;
+    @SerializedName("delivery-window-minutes")
+    private Integer deliveryWindowMinutes;
+
+    // Escalation thresholds (see EscalationRules)
+    @SerializedName("rules")
+    private List<RuleProperties> rules;
+
+    // Limits on the certificates listed (see CertificateSorter.soonest and MessageRenderer)
+    @SerializedName("max-certificates")
+    private Integer maxCertificates;
+    @SerializedName("digest-inline-limit")
+    private Integer digestInlineLimit;
+
+    // Alerting only on changed certificates (see ChangeCapture)
+    @SerializedName("change-capture")
+    private ChangeCaptureProperties changeCapture;
+
+    // Checks the required settings are present and in range, so a file missing one is rejected on load (keeping the previous
+    // snapshot on reload) rather than read as a default such as port 0
+    // THROWS: IOException when a setting is missing or invalid.
+    public void validate() throws IOException {
+        if (host == null || host.trim().isEmpty()) {
+            throw new IOException("[EmailerProperties] \"host\" must be set!");
+        }
+        if (port == null || port < 1 || port > 65535) {
+            throw new IOException("[EmailerProperties] \"port\" must be set to a port (1-65535)!");
+        }
+        if (sender == null || sender.trim().isEmpty()) {
+            throw new IOException("[EmailerProperties] \"sender\" must be set!");
+        }
+        // Rules are told apart in the results and the send ledger by name, so each must have its own
+        if (rules != null) {
+            Set<String> names = new HashSet<>();
+            for (RuleProperties rule : rules) {
+                if (rule == null) throw new IOException("[EmailerProperties] \"rules\" must not contain null!");
+                rule.validate();
+                if (!names.add(rule.getName())) {
+                    throw new IOException("[EmailerProperties] Rule name " + rule.getName() + " is used by more than one rule! "
+                            + "Give each rule with the same \"days\" its own \"name\".");
+                }
+            }
+        }
+        if (changeCapture != null) changeCapture.validate();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public List<String> getRecipients() {
+        return recipients == null ? Collections.<String>emptyList() : Collections.unmodifiableList(recipients);
+    }
+
+    // Column by which to group certificates into one email per owner, or null to send a single email
+    public String getOwnerColumn() {
+        return ownerColumn;
+    }
+
+    public Map<String, List<String>> getOwnerRecipients() {
+        return ownerRecipients == null ? Collections.<String, List<String>>emptyMap() : Collections.unmodifiableMap(ownerRecipients);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight == null ? 4 : maxInFlight;
+    }
+
+    // Maximum sends per second to the SMTP host. Non-positive means unlimited.
+    public double getMaxSendsPerSecond() {
+        return maxSendsPerSecond == null ? 0 : maxSendsPerSecond;
+    }
+
+    // Maximum sends per second from each sender address. Non-positive means unlimited.
+    public double getMaxSendsPerSecondPerSender() {
+        return maxSendsPerSecondPerSender == null ? 0 : maxSendsPerSecondPerSender;
+    }
+
+    // Number of sends that may be made at once, within the above limits, after a pause
+    public int getSendBurst() {
+        return sendBurst == null ? 1 : sendBurst;
+    }
+
+    // Minutes after each trigger over which a run's emails are spread, rather than all sent at once, or 0 not to spread them
+    public int getDeliveryWindowMinutes() {
+        return deliveryWindowMinutes == null ? 0 : deliveryWindowMinutes;
+    }
+
+    // The escalation rules, or when none are configured, a single rule listing the certificates expiring within 90 days to
+    // the top-level "recipients"
+    public List<RuleProperties> getRules() {
+        if (rules == null || rules.isEmpty()) return Collections.singletonList(RuleProperties.withinDays(90));
+        return Collections.unmodifiableList(rules);
+    }
+
+    // Maximum number of certificates (the soonest to expire) to send, or null for all
+    public Integer getMaxCertificates() {
+        return maxCertificates;
+    }
+
+    // Maximum number of certificates listed inline before the full list is attached instead, or -1 for no maximum
+    public int getDigestInlineLimit() {
+        return digestInlineLimit == null ? -1 : digestInlineLimit;
+    }
+
+    // Column identifying each certificate in change-capture mode, or null when not in change-capture mode
+    public String getIdColumn() {
+        return changeCapture == null ? null : changeCapture.getIdColumn();
+    }
+
+    // Change-data-capture settings, or null to send every matched certificate each run
+    public ChangeCaptureProperties getChangeCapture() {
+        return changeCapture;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+    Evaluates the escalation rules against the certificates, as of a given day. Each rule's threshold is precomputed as an
+    epoch-day boundary, so every rule is evaluated from the one scan of the database, by comparing each certificate's expiry
+    day against the boundaries.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+public class EscalationRules {
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    // The rules, widest threshold first, alongside each one's boundary: the first epoch day it no longer covers
+    private List<RuleProperties> rules;
+    private long[] boundaries;
+    private long today;
+
+    // Evaluates `rules` as of the instant `now` (epoch millis), which is computed once per run by the caller
+    public EscalationRules(List<RuleProperties> rules, long now) {
+        this.rules = new ArrayList<>(rules);
+        Collections.sort(this.rules, new Comparator<RuleProperties>() {
+            @Override
+            public int compare(RuleProperties r1, RuleProperties r2) {
+                return Integer.compare(r2.getDays(), r1.getDays());
+            }
+        });
+        today = epochDay(now);
+        boundaries = new long[this.rules.size()];
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = today + this.rules.get(i).getDays();
+        }
+    }
+
+    // Day since the epoch, in the system time zone, of the instant `millis`
+    public static long epochDay(long millis) {
+        return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), MILLIS_PER_DAY);
+    }
+
+    // The rules, widest threshold first
+    public List<RuleProperties> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    // The widest threshold, covering every certificate that any rule lists
+    public int getMaxDays() {
+        return rules.isEmpty() ? 0 : rules.get(0).getDays();
+    }
+
+    // Escalation level of a certificate expiring on day `day` (since the epoch): the number of rule thresholds it's within,
+    // plus one more once it has expired. Higher levels are more urgent.
+    public byte levelOf(long day) {
+        int level = day < today ? 1 : 0;
+        for (long boundary : boundaries) {
+            if (day < boundary) level++;
+        }
+        return (byte) level;
+    }
+
+    // The certificates of `certificates` (sorted such that the earliest to expire come first) within the threshold of `rule`,
+    // found by binary search for the first certificate past its boundary
+    public List<Certificate> within(List<Certificate> certificates, RuleProperties rule) {
+        long boundary = today + rule.getDays();
+        int low = 0;
+        int high = certificates.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (certificates.get(middle).getExpiryDay() < boundary) low = middle + 1;
+            else high = middle;
+        }
+        return certificates.subList(0, low);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+    Renders one email per recipient group concurrently into the Outbox, with a bounded number in flight, optionally spread
+    evenly over a delivery window. The Outbox's dispatcher then sends them as they fall due, rate limited per host and sender.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FanOutSender {
+    // Outcome of a group whose message another node of the cluster has already sent (or is sending)
+    public static final String ALREADY_SENT = "already sent";
+
+    private Outbox outbox;
+    private EmailService emailer;
+    private int maxInFlight;
+    // Start (in epoch milliseconds) and length of the window over which the messages are spread
+    private long windowStart;
+    private long windowMs;
+
+    // Builds the message for one recipient group
+    public interface MessageBuilder {
+        // THROWS: MessagingException when failing to construct the Message.
+        Message build(String to, List<Certificate> certificates) throws MessagingException;
+    }
+
+    // Messages are enqueued to `outbox` to be sent with `emailer`, with at most `maxInFlight` rendered at once
+    public FanOutSender(Outbox outbox, EmailService emailer, int maxInFlight) {
+        this(outbox, emailer, maxInFlight, 0, 0);
+    }
+
+    // As above, but with the messages due evenly across the `windowMs` milliseconds after `windowStart`, in the order of the
+    // groups, rather than all at once
+    public FanOutSender(Outbox outbox, EmailService emailer, int maxInFlight, long windowStart, long windowMs) {
+        this.outbox = outbox;
+        this.emailer = emailer;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.windowStart = windowStart;
+        this.windowMs = Math.max(0, windowMs);
+    }
+
+    // Builds and enqueues a message per entry of `groups` (recipients separated by commas -> the certificates they own). If
+    // `ledger` isn't null, each group is first claimed in it for run `runId`, and skipped if already sent by another node.
+    // Returns the outcome per group, in the order of `groups`: null if enqueued, ALREADY_SENT if skipped, otherwise a
+    // description of the failure.
+    // THROWS: InterruptedException when interrupted whilst waiting for the messages to be enqueued.
+    public Map<String, String> send(Map<String, List<Certificate>> groups, final MessageBuilder builder,
+                                    final SendLedger ledger, final String runId) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxInFlight, Math.max(1, groups.size())));
+        try {
+            // Submit a claim-render-enqueue task per group
+            Map<String, Future<String>> futures = new LinkedHashMap<>();
+            int index = 0;
+            for (final Map.Entry<String, List<Certificate>> group : groups.entrySet()) {
+                final String to = group.getKey();
+                // Due as soon as possible, or at this group's share of the window
+                final long notBefore = windowMs == 0 ? 0 : windowStart + windowMs * index++ / groups.size();
+                futures.put(to, executor.submit(() -> {
+                    if (ledger != null && !ledger.claim(runId, to)) return ALREADY_SENT;
+                    try {
+                        Message message = builder.build(to, group.getValue());
+                        if (notBefore == 0) outbox.enqueue(emailer, message);
+                        else outbox.enqueue(emailer, message, notBefore);
+                    }
+                    catch (Exception e) { // Give up the claim so a retry of the run may enqueue it
+                        if (ledger != null) ledger.release(runId, to);
+                        throw e;
+                    }
+                    if (ledger != null) ledger.markSent(runId, to);
+                    return null;
+                }));
+            }
+
+            // Collect the outcome of each task
+            Map<String, String> outcomes = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<String>> future : futures.entrySet()) {
+                try {
+                    outcomes.put(future.getKey(), future.getValue().get());
+                }
+                catch (ExecutionException e) { // Failure to build or enqueue this group's message
+                    outcomes.put(future.getKey(), e.getCause().toString());
+                }
+            }
+            return outcomes;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Groups `certificates` by owner (the value of the "owner-column"), mapping each owner to its recipients via
+    // `ownerRecipients`. Certificates whose owner has no configured recipients go to `defaultRecipients`. Preserves the order of `certificates` in each group.
+    public static Map<String, List<Certificate>> groupByOwner(List<Certificate> certificates,
+                                                              Map<String, List<String>> ownerRecipients,
+                                                              List<String> defaultRecipients) {
+        String defaultTo = String.join(",", defaultRecipients);
+        Map<String, String> ownerTo = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> owner : ownerRecipients.entrySet()) {
+            ownerTo.put(owner.getKey(), String.join(",", owner.getValue()));
+        }
+
+        Map<String, List<Certificate>> groups = new LinkedHashMap<>();
+        for (Certificate certificate : certificates) {
+            String owner = certificate.getOwner();
+            String to = owner == null ? null : ownerTo.get(owner);
+            if (to == null) to = defaultTo;
+            List<Certificate> group = groups.get(to);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(to, group);
+            }
+            group.add(certificate);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+    A DbConnection which is only opened (and its index built) on first use.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.omartanner.emailscheduler.Main;
+
+import java.io.IOException;
+
+public class LazyDbConnection {
+    private DatabaseProperties properties;
+    private volatile DbConnection connection;
+    // Set once closed, after which the connection is never opened again
+    private boolean closed = false;
+
+    public LazyDbConnection(DatabaseProperties properties) {
+        this.properties = properties;
+    }
+
+    public DatabaseProperties getProperties() {
+        return properties;
+    }
+
+    // Opens the DbConnection on a background thread, so it's ready before first use without holding up startup. A failure
+    // is only logged, and the first use tries again.
+    public void openInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                get();
+            }
+            catch (IOException | RuntimeException e) {
+                Main.getLogger().warning("[LazyDbConnection] Failure to open " + properties.getName() + " in the background! Error: " + e);
+            }
+        }, "db-open-" + properties.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Obtains the DbConnection, opening it if this is the first use. Only callers for this source wait whilst it opens.
+    // THROWS: IOException when failing to connect to the database, in which case the next call tries again.
+    public DbConnection get() throws IOException {
+        DbConnection result = connection;
+        if (result == null) {
+            synchronized (this) {
+                result = connection;
+                if (result == null) {
+                    if (closed) throw new IOException("[LazyDbConnection] " + properties.getName() + " has been closed!");
+                    // Read the optional columns the current emailer properties need into the index from the start
+                    EmailerProperties emailerProperties = Main.getConfig().getEmailerProperties();
+                    result = new DbConnection(properties.getDbPath(), properties.getDbPassword(), properties.getPageCacheMb(),
+                            emailerProperties.getOwnerColumn(), emailerProperties.getIdColumn());
+                    connection = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Closes the DbConnection if it was opened, deleting its snapshot of the database file, and stops it being opened again.
+    // Waits for an open in progress (e.g. in the background) to finish first, so its snapshot isn't left behind.
+    // THROWS: IOException when failing to close the database.
+    public synchronized void close() throws IOException {
+        closed = true;
+        DbConnection result = connection;
+        connection = null;
+        if (result != null) result.close();
+    }
+}
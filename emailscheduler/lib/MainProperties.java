@@ -0,0 +1,197 @@
+/*
+    Typed, immutable snapshot of mainProperties.json.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class MainProperties {
+    // Fields are populated by Gson, and never modified afterwards. Required settings are checked by validate.
+    @SerializedName("db-path")
+    private String dbPath;
+    @SerializedName("db-password")
+    private String dbPassword;
+    @SerializedName("hour")
+    private Integer hour;
+    @SerializedName("hour-minute")
+    private Integer minute;
+    @SerializedName("databases")
+    private List<DatabaseProperties> databases;
+    @SerializedName("thread-count")
+    private Integer threadCount;
+    @SerializedName("cluster")
+    private ClusterProperties cluster;
+    @SerializedName("outbox-dir")
+    private String outboxDir;
+    @SerializedName("dispatcher-threads")
+    private Integer dispatcherThreads;
+    @SerializedName("metrics-port")
+    private Integer metricsPort;
+    @SerializedName("metrics-bind-address")
+    private String metricsBindAddress;
+    @SerializedName("query-port")
+    private Integer queryPort;
+    @SerializedName("query-bind-address")
+    private String queryBindAddress;
+    @SerializedName("query-run-token")
+    private String queryRunToken;
+    @SerializedName("query-refresh-minutes")
+    private Integer queryRefreshMinutes;
+    @SerializedName("log-max-message-chars")
+    private Integer logMaxMessageChars;
+    @SerializedName("log-max-file-mb")
+    private Integer logMaxFileMb;
+    @SerializedName("log-roll-hours")
+    private Integer logRollHours;
+    @SerializedName("log-max-files")
+    private Integer logMaxFiles;
+    @SerializedName("warm-up-minutes")
+    private Integer warmUpMinutes;
+
+    // Checks the required settings are present and in range, so a file missing one is rejected on load (keeping the previous
+    // snapshot on reload) rather than read as a default such as midnight
+    // THROWS: IOException when a setting is missing or invalid.
+    public void validate() throws IOException {
+        if (hour == null || hour < 0 || hour > 23) {
+            throw new IOException("[MainProperties] \"hour\" must be set to an hour of the day (0-23)!");
+        }
+        if (minute == null || minute < 0 || minute > 59) {
+            throw new IOException("[MainProperties] \"hour-minute\" must be set to a minute of the hour (0-59)!");
+        }
+        // Sources are keyed by name, so a missing or repeated name would silently drop a database
+        if (databases == null || databases.isEmpty()) {
+            if (dbPath == null) {
+                throw new IOException("[MainProperties] \"db-path\" must be set when there are no \"databases\"!");
+            }
+        }
+        else {
+            Set<String> names = new HashSet<>();
+            for (DatabaseProperties database : databases) {
+                if (database == null || database.getName() == null) {
+                    throw new IOException("[MainProperties] Every entry of \"databases\" must have a \"name\"!");
+                }
+                if (!names.add(database.getName())) {
+                    throw new IOException("[MainProperties] Database name \"" + database.getName() + "\" is used more than once!");
+                }
+                if (database.getDbPath() == null) {
+                    throw new IOException("[MainProperties] Database \"" + database.getName() + "\" must have a \"db-path\"!");
+                }
+            }
+        }
+        if (cluster != null) cluster.validate();
+    }
+
+    public String getDbPath() {
+        return dbPath;
+    }
+
+    public String getDbPassword() {
+        return dbPassword;
+    }
+
+    // The database sources to send alerts for. If "databases" is absent, this is the single source given by "db-path" and
+    // "db-password", named "default".
+    public List<DatabaseProperties> getDatabases() {
+        if (databases == null || databases.isEmpty()) {
+            return Collections.singletonList(new DatabaseProperties("default", dbPath, dbPassword));
+        }
+        return Collections.unmodifiableList(databases);
+    }
+
+    // Number of Quartz worker threads, and so of sources that may be scanned at once. Defaults to one per source, up to the
+    // number of cores.
+    public int getThreadCount() {
+        if (threadCount != null) return threadCount;
+        return Math.max(1, Math.min(getDatabases().size(), Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Settings of the shared JDBC job store, or null to run standalone with an in-memory job store
+    public ClusterProperties getCluster() {
+        return cluster;
+    }
+
+    // Directory holding emails awaiting sending, or null for "outbox" in the launch directory
+    public String getOutboxDir() {
+        return outboxDir;
+    }
+
+    // Number of threads sending emails from the outbox, and so of SMTP hosts that may be sent to at once
+    public int getDispatcherThreads() {
+        return dispatcherThreads == null ? 2 : dispatcherThreads;
+    }
+
+    // Local port on which to serve Prometheus metrics at /metrics, or null not to
+    public Integer getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Address on which to serve metrics, or null for the loopback address, so they are only exposed beyond this host when
+    // asked for (e.g. "0.0.0.0" for a remote Prometheus)
+    public String getMetricsBindAddress() {
+        return metricsBindAddress;
+    }
+
+    // Port on which to serve the QueryServer, or null not to
+    public Integer getQueryPort() {
+        return queryPort;
+    }
+
+    // Address on which to serve the QueryServer, or null for the loopback address, so it's only exposed beyond this host
+    // when asked for
+    public String getQueryBindAddress() {
+        return queryBindAddress;
+    }
+
+    // Token that POST /runs must present as "Authorization: Bearer <token>", or null to require none, which is only allowed
+    // whilst the QueryServer is served on the loopback address
+    public String getQueryRunToken() {
+        return queryRunToken;
+    }
+
+    // Minutes between refreshes of the QueryServer's views of the certificates
+    public int getQueryRefreshMinutes() {
+        return queryRefreshMinutes == null ? 15 : queryRefreshMinutes;
+    }
+
+    // Length beyond which logged messages (e.g. a job result) are truncated, or -1 never to truncate
+    public int getLogMaxMessageChars() {
+        return logMaxMessageChars == null ? 2000 : logMaxMessageChars;
+    }
+
+    // Size and age at which logs.log is rolled over, and the number of rolled files kept
+    public long getLogMaxFileBytes() {
+        return (logMaxFileMb == null ? 10 : logMaxFileMb) * 1024L * 1024L;
+    }
+
+    public long getLogRollIntervalMs() {
+        return TimeUnit.HOURS.toMillis(logRollHours == null ? 24 : logRollHours);
+    }
+
+    public int getLogMaxFiles() {
+        return logMaxFiles == null ? 10 : logMaxFiles;
+    }
+
+    // Minutes before each daily firing at which to warm up its source (see WarmUp), or 0 not to
+    public int getWarmUpMinutes() {
+        return warmUpMinutes == null ? 3 : warmUpMinutes;
+    }
+
+    // Hour of the day at which the emailer job fires
+    public int getHour() {
+        return hour;
+    }
+
+    // Minute of the hour at which the emailer job fires
+    public int getMinute() {
+        return minute;
+    }
+}
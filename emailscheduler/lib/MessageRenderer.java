@@ -0,0 +1,277 @@
+/*
+    Renders the email listing a set of certificates, streaming the HTML body (and in digest mode, a compressed CSV of every
+    certificate) straight into the MIME output rather than building it up in memory first.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class MessageRenderer {
+    // Fixed fragments of the HTML template, around each certificate's name and time remaining
+    private static final String HTML_HEADER_START = "<p>The following certificates have been found to expire within <b>";
+    private static final String HTML_HEADER_END = "</b> days:</p><ul>";
+    private static final String HTML_ITEM_START = "<li><p><b>";
+    private static final String HTML_ITEM_MIDDLE = "</b> - ";
+    private static final String HTML_ITEM_END = "</p></li>\r\n";
+    private static final String HTML_FOOTER = "</ul>";
+
+    private static final String CSV_HEADER = "certificateName,certificateExpireDate,daysRemaining\r\n";
+    private static final String CSV_FILE_NAME = "certificates.csv.gz";
+
+    private List<Certificate> certificates;
+    // Today, as a day since the epoch
+    private long today;
+    private int withinDays;
+    private int inlineLimit;
+    // Optional paragraph of HTML shown above the list, e.g. describing what changed since the previous alert
+    private String summary;
+
+    // Renders `certificates`, found to expire within `withinDays` days, relative to the instant `today` (epoch millis), which
+    // is computed once per run by the caller. If `inlineLimit` is non-negative and there are more certificates than it, only
+    // the first `inlineLimit` are listed in the body and the full list is attached as a compressed CSV (digest mode).
+    public MessageRenderer(List<Certificate> certificates, long today, int withinDays, int inlineLimit) {
+        this.certificates = certificates;
+        this.today = EscalationRules.epochDay(today);
+        this.withinDays = withinDays;
+        this.inlineLimit = inlineLimit;
+    }
+
+    // Sets a paragraph of HTML to show above the list, or null for none. Must be called before the message is written.
+    public void setSummary(String summary) {
+        this.summary = summary;
+    }
+
+    // Whether the inline list is capped and the full list attached
+    public boolean isDigest() {
+        return inlineLimit >= 0 && certificates.size() > inlineLimit;
+    }
+
+    // Constructs the content of the email: the HTML body, followed in digest mode by the CSV attachment. Neither is rendered
+    // until the message is written out.
+    // THROWS: MessagingException when failing to construct the body parts.
+    public Multipart toMultipart() throws MessagingException {
+        Multipart multipart = new MimeMultipart();
+
+        MimeBodyPart body = new MimeBodyPart();
+        body.setDataHandler(new StreamingDataHandler(new StreamingDataSource("text/html; charset=UTF-8", null, false)));
+        // Set the encoding up front, otherwise JavaMail would render the whole body once just to choose one
+        body.setHeader("Content-Type", "text/html; charset=UTF-8");
+        body.setHeader("Content-Transfer-Encoding", "quoted-printable");
+        multipart.addBodyPart(body);
+
+        if (isDigest()) {
+            MimeBodyPart attachment = new MimeBodyPart();
+            attachment.setDataHandler(new StreamingDataHandler(new StreamingDataSource("application/gzip", CSV_FILE_NAME, true)));
+            attachment.setFileName(CSV_FILE_NAME);
+            attachment.setHeader("Content-Type", "application/gzip; name=" + CSV_FILE_NAME);
+            attachment.setHeader("Content-Transfer-Encoding", "base64");
+            multipart.addBodyPart(attachment);
+        }
+        return multipart;
+    }
+
+    // Renders the HTML body to a String, for callers that need it in memory (small lists only)
+    public String renderHtml() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeHtml(writer);
+        }
+        catch (IOException e) { // StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    // Writes the HTML body to `out`, one certificate at a time
+    // THROWS: IOException when failing to write to `out`.
+    public void writeHtml(Writer out) throws IOException {
+        if (summary != null) {
+            out.write("<p>");
+            out.write(summary);
+            out.write("</p>");
+        }
+        out.write(HTML_HEADER_START);
+        out.write(Integer.toString(withinDays));
+        out.write(HTML_HEADER_END);
+        int count = isDigest() ? inlineLimit : certificates.size();
+        for (int i = 0; i < count; i++) {
+            Certificate certificate = certificates.get(i);
+            // Obtain number of days between today and the certificate expiry, then compute weeks + days from it
+            long totalDays = daysRemaining(certificate);
+            long weeks = totalDays / 7;
+            long days = totalDays % 7;
+            out.write(HTML_ITEM_START);
+            out.write(escapeHtml(String.valueOf(certificate.getName())));
+            out.write(HTML_ITEM_MIDDLE);
+            out.write(Long.toString(weeks));
+            out.write(" weeks, ");
+            out.write(Long.toString(days));
+            out.write(" days");
+            out.write(HTML_ITEM_END);
+        }
+        out.write(HTML_FOOTER);
+        if (isDigest()) {
+            out.write("<p>Showing the first <b>" + inlineLimit + "</b> of <b>" + certificates.size()
+                    + "</b> certificates. The full list is attached as " + CSV_FILE_NAME + ".</p>");
+        }
+    }
+
+    // Writes every certificate to `out` as CSV
+    // THROWS: IOException when failing to write to `out`.
+    public void writeCsv(Writer out) throws IOException {
+        out.write(CSV_HEADER);
+        for (Certificate certificate : certificates) {
+            out.write(csvField(certificate.getName()));
+            out.write(',');
+            out.write(certificate.getExpiryDate().toString());
+            out.write(',');
+            out.write(Long.toString(daysRemaining(certificate)));
+            out.write("\r\n");
+        }
+    }
+
+    // Number of days from today until the certificate expires (negative once expired)
+    private long daysRemaining(Certificate certificate) {
+        return certificate.getExpiryDay() - today;
+    }
+
+    // Escapes the characters of `value` which are special in HTML text or attribute values
+    private static String escapeHtml(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            String replacement;
+            switch (value.charAt(i)) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: replacement = null;
+            }
+            // Only copy the string once it turns out to need escaping, which most names don't
+            if (replacement != null && escaped == null) escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            if (escaped == null) continue;
+            if (replacement != null) escaped.append(replacement);
+            else escaped.append(value.charAt(i));
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    // Quotes a CSV field if it contains a separator, quote or line break
+    private static String csvField(String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    // Renders one of the parts (the HTML body, or the compressed CSV) to `out`, without closing `out`
+    private void render(boolean csv, OutputStream out) throws IOException {
+        // Count the bytes rendered (after compression, for the CSV)
+        final Metrics.Counter bytes = Metrics.counter(Metrics.RENDER_BYTES);
+        // Shield `out` from being flushed or closed, since the MIME writer continues to write to it afterwards (and flushing
+        // its base64 encoder mid-part would pad the output early)
+        OutputStream shielded = new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.add(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes.add(len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        if (csv) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(shielded), StandardCharsets.UTF_8))) {
+                writeCsv(writer);
+            }
+        }
+        else {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(shielded, StandardCharsets.UTF_8))) {
+                writeHtml(writer);
+            }
+        }
+    }
+
+    // DataHandler which renders its part directly into the output stream when the message is written, rather than copying
+    // from its DataSource's InputStream
+    private class StreamingDataHandler extends DataHandler {
+        private StreamingDataSource source;
+
+        private StreamingDataHandler(StreamingDataSource source) {
+            super(source);
+            this.source = source;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            render(source.csv, out);
+        }
+    }
+
+    // DataSource describing one of the parts. Its InputStream is only a fallback for callers that read the content back,
+    // and renders the part into memory.
+    private class StreamingDataSource implements DataSource {
+        private String contentType;
+        private String name;
+        private boolean csv;
+
+        private StreamingDataSource(String contentType, String name, boolean csv) {
+            this.contentType = contentType;
+            this.name = name;
+            this.csv = csv;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            render(csv, out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("[MessageRenderer] Rendered parts are read-only!");
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+    Registry of the counters and timers recorded by each stage of the pipeline, exposed over JMX (see MetricsMXBean) and as
+    Prometheus text (see MetricsServer).
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics implements MetricsMXBean {
+    // Names of the metrics recorded across the pipeline
+    public static final String ROWS_SCANNED = "rows_scanned";
+    public static final String ROWS_MATCHED = "rows_matched";
+    public static final String PAGE_CACHE_HITS = "page_cache_hits";
+    public static final String PAGE_CACHE_MISSES = "page_cache_misses";
+    public static final String RENDER_BYTES = "render_bytes";
+    public static final String SMTP_CONNECT = "smtp_connect";
+    public static final String SMTP_SEND = "smtp_send";
+    public static final String SEND_RETRIES = "send_retries";
+    public static final String SEND_ABANDONED = "send_abandoned";
+    public static final String SEND_THROTTLED = "send_throttled";
+    public static final String STAGE_PREFIX = "stage_";
+
+    private static final Metrics instance = new Metrics();
+
+    private Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    // Whether metrics recorded on the current thread are discarded (see setMuted)
+    private static final ThreadLocal<Boolean> muted = ThreadLocal.withInitial(() -> false);
+
+    // A monotonically increasing count
+    public static class Counter {
+        private LongAdder value = new LongAdder();
+
+        public void add(long amount) {
+            if (muted.get()) return;
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Count, total and maximum of a set of recorded durations
+    public static class Timer {
+        private LongAdder count = new LongAdder();
+        private LongAdder totalNanos = new LongAdder();
+        private LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            if (muted.get()) return;
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        // Records the time since `startNanos` (a System.nanoTime)
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    // The registry shared by the whole process
+    public static Metrics get() {
+        return instance;
+    }
+
+    // Discards (or stops discarding) the metrics recorded on the current thread, e.g. whilst warming up, so work done ahead of
+    // a run isn't counted as though it were the run's. Work handed to other threads must carry this over itself.
+    public static void setMuted(boolean mute) {
+        muted.set(mute);
+    }
+
+    public static boolean isMuted() {
+        return muted.get();
+    }
+
+    public static Counter counter(String name) {
+        return instance.counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public static Timer timer(String name) {
+        return instance.timers.computeIfAbsent(name, key -> new Timer());
+    }
+
+    // Counters by name, sorted
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        return values;
+    }
+
+    // Number of recordings of each timer, sorted by name
+    @Override
+    public Map<String, Long> getTimerCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            values.put(timer.getKey(), timer.getValue().getCount());
+        }
+        return values;
+    }
+
+    // Mean of each timer in milliseconds, sorted by name
+    @Override
+    public Map<String, Double> getTimerMeansMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            long count = timer.getValue().getCount();
+            values.put(timer.getKey(), count == 0 ? 0 : timer.getValue().getTotalNanos() / (double) count / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return values;
+    }
+
+    // Maximum of each timer in milliseconds, sorted by name
+    @Override
+    public Map<String, Double> getTimerMaxesMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            values.put(timer.getKey(), timer.getValue().getMaxNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return values;
+    }
+
+    // Every metric in the Prometheus text exposition format, prefixed "emailscheduler_". Counters are exported as
+    // <name>_total, and timers as summaries <name>_seconds_count / _sum alongside a <name>_seconds_max gauge.
+    public String toPrometheusText() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            String name = "emailscheduler_" + counter.getKey() + "_total";
+            builder.append("# TYPE ").append(name).append(" counter\n");
+            builder.append(name).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (String timerName : new TreeMap<>(timers).keySet()) {
+            Timer timer = timers.get(timerName);
+            String name = "emailscheduler_" + timerName + "_seconds";
+            double nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+            builder.append("# TYPE ").append(name).append(" summary\n");
+            builder.append(name).append("_count ").append(timer.getCount()).append('\n');
+            builder.append(name).append("_sum ").append(timer.getTotalNanos() / nanosPerSecond).append('\n');
+            builder.append("# TYPE ").append(name).append("_max gauge\n");
+            builder.append(name).append("_max ").append(timer.getMaxNanos() / nanosPerSecond).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,18 @@
+/*
+    JMX view of the Metrics registry.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getTimerCounts();
+
+    Map<String, Double> getTimerMeansMillis();
+
+    Map<String, Double> getTimerMaxesMillis();
+}
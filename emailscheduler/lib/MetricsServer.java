@@ -0,0 +1,41 @@
+/*
+    A local HTTP endpoint serving the Metrics registry as Prometheus text at /metrics.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsServer {
+    private HttpServer server;
+
+    // Serves on `port` of `bindAddress`, or of the loopback address if null
+    // THROWS: IOException when failing to resolve `bindAddress` or to bind to `port`.
+    public MetricsServer(String bindAddress, int port) throws IOException {
+        InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.get().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
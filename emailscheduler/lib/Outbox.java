@@ -0,0 +1,171 @@
+/*
+    A durable, on-disk queue of rendered emails awaiting sending. Each email is written (and synced) to its own file under a
+    directory per SMTP host before any attempt to send it is made, and only deleted once sent, so an email survives a failed
+    send or a crash until the OutboxDispatcher has delivered it. Each file's name begins with the time before which it mustn't be
+    sent, so a host's emails are sent in that order. A sent email is renamed out of the queue before it's deleted, so one
+    whose deletion fails is never sent again.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Outbox {
+    private static final String MESSAGE_SUFFIX = ".eml";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Appended to the name of a sent email awaiting deletion
+    private static final String SENT_SUFFIX = ".sent";
+    // Subdirectory of a host's directory holding the emails that could not be sent after the maximum number of attempts
+    private static final String FAILED_DIRECTORY = "failed";
+
+    private File directory;
+
+    // The EmailService each host directory's emails were last enqueued with, which the dispatcher falls back on once the
+    // current emailer properties are for another host
+    private Map<String, EmailService> emailers = new ConcurrentHashMap<>();
+
+    // Orders emails enqueued within the same millisecond
+    private AtomicLong sequence = new AtomicLong();
+
+    // Called with the host directory's name whenever an email is enqueued (e.g. to wake the dispatcher)
+    private volatile HostListener listener;
+
+    public interface HostListener {
+        void enqueued(String host);
+    }
+
+    // THROWS: IOException when failing to create `directory`.
+    public Outbox(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+    }
+
+    public void setListener(HostListener listener) {
+        this.listener = listener;
+    }
+
+    // Writes `message` to the directory of `emailer`'s host, durably, to be sent with `emailer` as soon as possible
+    // THROWS: MessagingException when failing to render the message, IOException when failing to write it.
+    public void enqueue(EmailService emailer, Message message) throws MessagingException, IOException {
+        enqueue(emailer, message, System.currentTimeMillis());
+    }
+
+    // Writes `message` as above, to be sent no earlier than `notBefore` (in epoch milliseconds)
+    // THROWS: MessagingException when failing to render the message, IOException when failing to write it.
+    public void enqueue(EmailService emailer, Message message, long notBefore) throws MessagingException, IOException {
+        String host = hostDirectoryName(emailer.getHost());
+        emailers.put(host, emailer);
+        File hostDirectory = new File(directory, host);
+        Files.createDirectories(hostDirectory.toPath());
+
+        // Write to a temporary file first, then rename, so a crash never leaves a partial email to be sent
+        String name = String.format("%013d-%09d-%s", notBefore, sequence.incrementAndGet() % 1000000000, UUID.randomUUID());
+        File temp = new File(hostDirectory, name + TEMP_SUFFIX);
+        message.saveChanges();
+        try (FileOutputStream file = new FileOutputStream(temp);
+             OutputStream out = new BufferedOutputStream(file)) {
+            message.writeTo(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(hostDirectory, name + MESSAGE_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        HostListener current = listener;
+        if (current != null) current.enqueued(host);
+    }
+
+    // Names of the host directories in the outbox
+    public List<String> hosts() {
+        File[] hostDirectories = directory.listFiles(File::isDirectory);
+        List<String> hosts = new ArrayList<>();
+        if (hostDirectories != null) {
+            for (File hostDirectory : hostDirectories) hosts.add(hostDirectory.getName());
+        }
+        return hosts;
+    }
+
+    // Emails awaiting sending in `host`'s directory, in the order they're due
+    public List<File> pending(String host) {
+        File[] files = new File(directory, host).listFiles((dir, name) -> name.endsWith(MESSAGE_SUFFIX));
+        if (files == null) return Collections.emptyList();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    // The EmailService registered for `host`'s directory, or null if nothing has been enqueued for it since startup
+    public EmailService emailerFor(String host) {
+        return emailers.get(host);
+    }
+
+    // Registers the EmailService to send `emailer`'s host directory with, e.g. for emails left over from before a restart
+    public void register(EmailService emailer) {
+        emailers.put(hostDirectoryName(emailer.getHost()), emailer);
+    }
+
+    // Time (in epoch milliseconds) before which a pending email mustn't be sent
+    public static long notBefore(File message) {
+        String name = message.getName();
+        int end = name.indexOf('-');
+        try {
+            return Long.parseLong(end < 0 ? name : name.substring(0, end));
+        }
+        catch (NumberFormatException e) { // Not named by enqueue, so send it straight away
+            return 0;
+        }
+    }
+
+    // Removes a sent email: renames it out of the pending emails, then deletes it. A failed deletion leaves it to be deleted
+    // by deleteSent.
+    // THROWS: IOException when failing to rename the email, in which case it's still pending.
+    public void remove(File message) throws IOException {
+        File sent = new File(message.getParentFile(), message.getName() + SENT_SUFFIX);
+        Files.move(message.toPath(), sent.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.deleteIfExists(sent.toPath());
+        }
+        catch (IOException e) { // Already out of the queue, so it's enough to try again later
+        }
+    }
+
+    // Deletes the sent emails left in `host`'s directory by failed deletions
+    public void deleteSent(String host) {
+        File[] files = new File(directory, host).listFiles((dir, name) -> name.endsWith(SENT_SUFFIX));
+        if (files == null) return;
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            }
+            catch (IOException e) { // Try again on the next drain
+            }
+        }
+    }
+
+    // Moves an email that could not be sent aside, so it's kept for inspection but no longer retried
+    public void fail(File message) throws IOException {
+        File failedDirectory = new File(message.getParentFile(), FAILED_DIRECTORY);
+        Files.createDirectories(failedDirectory.toPath());
+        Files.move(message.toPath(), new File(failedDirectory, message.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Name of the directory holding `host`'s emails, safe for use as a file name
+    public static String hostDirectoryName(String host) {
+        return host.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+}
@@ -0,0 +1,355 @@
+/*
+    Drains the Outbox in the background, sending each host's emails in order once they're due. Sends are rate limited by a
+    token bucket per host and per sender, each of which slows down when the server responds that it's being sent to too fast.
+    A failed send backs off that host exponentially (with jitter) before retrying, without holding up other hosts or the Quartz
+    worker threads that enqueued the emails.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.omartanner.emailscheduler.Main;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.util.SharedFileInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class OutboxDispatcher {
+    // Backoff after the first failure, the most it may grow to, and the attempts made at an email before it is set aside
+    private static final long BASE_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_ATTEMPTS = 10;
+    // SMTP responses by which a server signals that it's being sent to too fast: 421 (service not available, closing the
+    // connection) and 451 (local error, e.g. a rate limit, try again later)
+    private static final int SERVICE_NOT_AVAILABLE = 421;
+    private static final int LOCAL_ERROR = 451;
+
+    private Outbox outbox;
+    // Source of the current emailer properties, read afresh on every drain
+    private Supplier<EmailerProperties> properties;
+    private ScheduledExecutorService executor;
+    private Map<String, HostState> hosts = new ConcurrentHashMap<>();
+    // Limits the rate of sends from each sender address, across every host
+    private Map<String, TokenBucket> senders = new ConcurrentHashMap<>();
+
+    // Retry state of one host's directory. Guarded by its own lock.
+    private static class HostState {
+        // Whether a drain is scheduled or running, whether it's running, and when it's scheduled to start
+        private boolean scheduled = false;
+        private boolean running = false;
+        private long scheduledAt = 0;
+        private ScheduledFuture<?> drain;
+        // When the next drain may start after a failure
+        private long nextAttemptAt = 0;
+        // Consecutive failed sends, which set the backoff
+        private int failures = 0;
+        // Failed attempts at each pending email, by file name
+        private Map<String, Integer> attempts = new HashMap<>();
+        // Emails that were sent but couldn't be removed from the outbox, by file name, which mustn't be sent again
+        private Set<String> sent = new HashSet<>();
+        // Limits the rate of sends to the host
+        private TokenBucket bucket = new TokenBucket(0, 1);
+    }
+
+    // Sends using up to `threads` threads, so at most that many hosts are drained at once, with the current emailer properties
+    public OutboxDispatcher(Outbox outbox, int threads) {
+        this(outbox, threads, () -> Main.getConfig().getEmailerProperties());
+    }
+
+    // As above, with the emailer properties given by `properties` (e.g. fixed ones in a test)
+    public OutboxDispatcher(Outbox outbox, int threads, Supplier<EmailerProperties> properties) {
+        this.outbox = outbox;
+        this.properties = properties;
+        this.executor = Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "outbox-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Starts draining, beginning with any emails left in the outbox from before a restart
+    public void start() {
+        outbox.setListener(this::wake);
+        for (String host : outbox.hosts()) {
+            wake(host);
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    // Schedules a drain of `host`'s directory, as soon as its backoff allows, unless one is already scheduled as soon
+    public void wake(String host) {
+        HostState state = hosts.computeIfAbsent(host, key -> new HostState());
+        synchronized (state) {
+            schedule(host, state, Math.max(System.currentTimeMillis(), state.nextAttemptAt));
+        }
+    }
+
+    // Schedules a drain of `host`'s directory at `at` (in epoch milliseconds). A drain already scheduled later (e.g. waiting
+    // for an email that isn't yet due) is brought forward; otherwise it stands.
+    private void schedule(String host, HostState state, long at) {
+        if (state.scheduled) {
+            if (state.running || state.scheduledAt <= at || !state.drain.cancel(false)) return;
+        }
+        state.scheduled = true;
+        state.scheduledAt = at;
+        state.drain = executor.schedule(() -> drain(host, state), Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    // Sends the due emails of `host`'s directory in order, stopping at the first failure to back off, or at the first email
+    // not yet due to wait for it
+    private void drain(String host, HostState state) {
+        synchronized (state) {
+            state.running = true;
+        }
+        boolean failed = false;
+        try {
+            EmailerProperties properties = this.properties.get();
+            EmailService emailer = emailerFor(host, properties);
+            if (emailer == null) { // Nothing to send with until the host is configured again
+                Main.getLogger().warning("[OutboxDispatcher] No SMTP details for " + host + ", leaving its emails in the outbox!");
+                synchronized (state) {
+                    state.scheduled = false;
+                    state.running = false;
+                }
+                return;
+            }
+            state.bucket.setLimit(properties.getMaxSendsPerSecond(), properties.getSendBurst());
+
+            outbox.deleteSent(host);
+            for (File file : outbox.pending(host)) {
+                if (alreadySent(state, file)) continue;
+                // Spread over a delivery window, so wait until it's due (rescheduled below)
+                if (Outbox.notBefore(file) > System.currentTimeMillis()) break;
+                if (!send(emailer, state, properties, file)) {
+                    failed = true;
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) { // Stopping
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (RuntimeException e) { // Unexpected, so back off rather than let the drain die silently
+            Main.getLogger().severe("[OutboxDispatcher] Failure draining " + host + "! Error: " + e);
+            failed = true;
+        }
+
+        synchronized (state) {
+            state.scheduled = false;
+            state.running = false;
+            if (failed) {
+                state.failures++;
+                state.nextAttemptAt = System.currentTimeMillis() + backoff(state.failures);
+            }
+            else {
+                state.failures = 0;
+            }
+        }
+        // Retry after the backoff
+        if (failed) {
+            wake(host);
+            return;
+        }
+        // Drain again once the next email is due, which may be now if one was enqueued whilst draining (whose wake was
+        // ignored since this drain was running). Waking for an email that isn't yet due would instead bring the drain forward
+        // to now, only for it to find the email still not due, over and over.
+        long due = nextDue(host, state);
+        if (due >= 0) {
+            synchronized (state) {
+                schedule(host, state, Math.max(due, state.nextAttemptAt));
+            }
+        }
+    }
+
+    // Attempts to send one pending email, limited by both the host's bucket and its sender's, returning whether the drain may
+    // carry on to the next
+    private boolean send(EmailService emailer, HostState state, EmailerProperties properties, File file) throws InterruptedException {
+        TokenBucket senderBucket = null;
+        SharedFileInputStream in = null;
+        try {
+            // Stream the content from the file as it's sent, rather than reading it all into memory
+            in = new SharedFileInputStream(file);
+            Message message = emailer.readMessage(in);
+            senderBucket = senderBucket(message, properties);
+            state.bucket.acquire();
+            if (senderBucket != null) senderBucket.acquire();
+            emailer.sendBatch(Collections.singletonList(message));
+            state.bucket.recover();
+            if (senderBucket != null) senderBucket.recover();
+        }
+        catch (MessagingException e) {
+            if (isThrottled(e)) {
+                // The server, not the email, is the problem, so slow down and back off without counting an attempt
+                state.bucket.throttle();
+                if (senderBucket != null) senderBucket.throttle();
+                Metrics.counter(Metrics.SEND_THROTTLED).add(1);
+                Main.getLogger().warning("[OutboxDispatcher] Throttled by server whilst sending " + file.getName()
+                        + ", slowing to " + String.format(Locale.ROOT, "%.2f", state.bucket.getPermitsPerSecond()) + " sends per second! Error: " + e);
+                return false;
+            }
+            return failed(state, file, e);
+        }
+        catch (IOException e) {
+            return failed(state, file, e);
+        }
+        finally {
+            // Closed quietly, since failing to close the file after sending mustn't count as a failed send
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    Main.getLogger().warning("[OutboxDispatcher] Failure to close " + file.getName() + "! Error: " + e);
+                }
+            }
+        }
+
+        // Sent, so a failure from here on mustn't lead to the email being sent again
+        synchronized (state) {
+            state.attempts.remove(file.getName());
+        }
+        remove(state, file);
+        return true;
+    }
+
+    // Removes a sent email from the outbox, or failing that remembers not to send it again whilst retrying its removal
+    private void remove(HostState state, File file) {
+        try {
+            outbox.remove(file);
+            synchronized (state) {
+                state.sent.remove(file.getName());
+            }
+        }
+        catch (IOException e) {
+            synchronized (state) {
+                state.sent.add(file.getName());
+            }
+            Main.getLogger().severe("[OutboxDispatcher] Sent " + file.getName() + " but failed to remove it from the outbox! Error: " + e);
+        }
+    }
+
+    // When the first of `host`'s emails still to send is due (in epoch milliseconds), or -1 if there are none. Pending emails
+    // are in the order they're due, so that's the first one not already sent.
+    private long nextDue(String host, HostState state) {
+        for (File file : outbox.pending(host)) {
+            synchronized (state) {
+                if (state.sent.contains(file.getName())) continue;
+            }
+            return Math.max(0, Outbox.notBefore(file));
+        }
+        return -1;
+    }
+
+    // Whether `file` has already been sent (but not removed), in which case its removal is retried
+    private boolean alreadySent(HostState state, File file) {
+        synchronized (state) {
+            if (!state.sent.contains(file.getName())) return false;
+        }
+        remove(state, file);
+        return true;
+    }
+
+    // Records a failed attempt at an email, setting it aside once it has failed too many times. Returns whether the drain may
+    // carry on to the next email.
+    private boolean failed(HostState state, File file, Exception e) {
+        int attempts;
+        synchronized (state) {
+            attempts = state.attempts.merge(file.getName(), 1, Integer::sum);
+        }
+        Metrics.counter(Metrics.SEND_RETRIES).add(1);
+        Main.getLogger().warning("[OutboxDispatcher] Failure to send " + file.getName() + " (attempt " + attempts + ")! Error: " + e);
+        if (attempts >= MAX_ATTEMPTS) {
+            setAside(state, file);
+            // The email, not the host, is the likely problem, so carry on with the rest
+            return true;
+        }
+        return false;
+    }
+
+    // Gives up on an email that has failed too many times
+    private void setAside(HostState state, File file) {
+        try {
+            outbox.fail(file);
+            Metrics.counter(Metrics.SEND_ABANDONED).add(1);
+            Main.getLogger().severe("[OutboxDispatcher] Gave up sending " + file.getName() + " after " + MAX_ATTEMPTS + " attempts!");
+        }
+        catch (IOException e) {
+            Main.getLogger().severe("[OutboxDispatcher] Failure to set aside " + file.getName() + "! Error: " + e);
+        }
+        synchronized (state) {
+            state.attempts.remove(file.getName());
+        }
+    }
+
+    // The EmailService for `host`'s directory: that of the current emailer `properties` if they are for the same host, so
+    // emails already queued are sent with credentials reloaded since they were enqueued, or otherwise the one registered on
+    // enqueue (e.g. for a host the properties have since moved away from)
+    private EmailService emailerFor(String host, EmailerProperties properties) {
+        if (Outbox.hostDirectoryName(properties.getHost()).equals(host)) {
+            // Reuses the shared EmailService (and its connections) unless the SMTP details have changed
+            EmailService emailer = EmailService.forServer(properties.getHost(), properties.getPort(), properties.getUsername(),
+                    properties.getPassword());
+            outbox.register(emailer);
+            return emailer;
+        }
+        return outbox.emailerFor(host);
+    }
+
+    // The bucket limiting sends from `message`'s sender, set to the current "max-sends-per-second-per-sender", or null if sends
+    // per sender aren't limited (or the message has no sender)
+    // THROWS: MessagingException when failing to read the sender.
+    private TokenBucket senderBucket(Message message, EmailerProperties properties) throws MessagingException {
+        if (properties.getMaxSendsPerSecondPerSender() <= 0) return null;
+        Address[] from = message.getFrom();
+        if (from == null || from.length == 0) return null;
+        String sender = from[0] instanceof InternetAddress ? ((InternetAddress) from[0]).getAddress() : from[0].toString();
+        TokenBucket bucket = senders.computeIfAbsent(sender.toLowerCase(Locale.ROOT),
+                key -> new TokenBucket(properties.getMaxSendsPerSecondPerSender(), properties.getSendBurst()));
+        bucket.setLimit(properties.getMaxSendsPerSecondPerSender(), properties.getSendBurst());
+        return bucket;
+    }
+
+    // Whether `e`, or any exception chained to it, is an SMTP response signalling the server is being sent to too fast
+    private static boolean isThrottled(MessagingException e) {
+        for (Exception cause = e; cause != null;
+             cause = cause instanceof MessagingException ? ((MessagingException) cause).getNextException() : null) {
+            int code = -1;
+            if (cause instanceof SMTPSendFailedException) code = ((SMTPSendFailedException) cause).getReturnCode();
+            else if (cause instanceof SMTPAddressFailedException) code = ((SMTPAddressFailedException) cause).getReturnCode();
+            else if (cause instanceof SMTPSenderFailedException) code = ((SMTPSenderFailedException) cause).getReturnCode();
+            if (code == SERVICE_NOT_AVAILABLE || code == LOCAL_ERROR) return true;
+        }
+        return false;
+    }
+
+    // Exponential backoff after `failures` consecutive failures, capped, with half of it randomised so that retries spread out
+    private static long backoff(int failures) {
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(failures - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+}
@@ -0,0 +1,385 @@
+/*
+    A local HTTP endpoint for querying the certificates on demand, rather than waiting for the daily email. Serves the
+    certificates expiring in a range of dates at /certificates, as JSON or CSV, from a CertificateView of each source that is
+    refreshed periodically, so queries never touch the database. Also triggers an ad-hoc run of a source's EmailerJob at /runs.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+import com.omartanner.emailscheduler.Main;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class QueryServer {
+    // Certificates per page when no "limit" is given, and the most that may be asked for
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+    // Seconds a client is asked to wait before retrying whilst a source's view is first being built
+    private static final int RETRY_AFTER_SECONDS = 30;
+    private static final String CSV = "csv";
+    private static final String JSON = "json";
+    private static final String BEARER = "Bearer ";
+
+    // Gson used to format the JSON responses (thread-safe)
+    private static final Gson gson = new Gson();
+
+    private HttpServer server;
+    // Token required by POST /runs (null for none), and whether the server is reachable only from this host
+    private String runToken;
+    private boolean loopback;
+    private Scheduler scheduler;
+    private Map<String, JobKey> jobs;
+    private ScheduledExecutorService refresher;
+    private long refreshMs;
+    // Source of each source's view, and of the current emailer properties, read afresh on every refresh and query
+    private ViewSource viewSource;
+    private Supplier<EmailerProperties> properties;
+
+    // The latest view of each source, by source name (absent until first built)
+    private Map<String, CertificateView> views = new ConcurrentHashMap<>();
+
+    // Serves the sources (the keys of `jobs`) on `port` of `bindAddress` (or of the loopback address if null), refreshing
+    // their views every `refreshMinutes` minutes, and triggering their jobs in `scheduler` for requests bearing `runToken`.
+    // Without a token, runs may only be triggered on the loopback address.
+    // THROWS: IOException when failing to resolve `bindAddress` or to bind to `port`.
+    public QueryServer(String bindAddress, int port, String runToken, Scheduler scheduler, Map<String, JobKey> jobs,
+                       int refreshMinutes) throws IOException {
+        this(bindAddress, port, runToken, scheduler, jobs, refreshMinutes,
+                (source, owner, id) -> Main.getDbConnection(source).getView(owner, id),
+                () -> Main.getConfig().getEmailerProperties());
+    }
+
+    // As above, with the views read by `viewSource` and the emailer properties given by `properties` (e.g. fixed ones in a test)
+    // THROWS: IOException when failing to resolve `bindAddress` or to bind to `port`.
+    public QueryServer(String bindAddress, int port, String runToken, Scheduler scheduler, Map<String, JobKey> jobs,
+                       int refreshMinutes, ViewSource viewSource, Supplier<EmailerProperties> properties) throws IOException {
+        InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+        this.runToken = runToken;
+        this.loopback = address.isLoopbackAddress();
+        this.scheduler = scheduler;
+        this.jobs = jobs;
+        this.viewSource = viewSource;
+        this.properties = properties;
+        this.refreshMs = TimeUnit.MINUTES.toMillis(Math.max(1, refreshMinutes));
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "query-view-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/certificates", exchange -> handle(exchange, this::certificates));
+        server.createContext("/runs", exchange -> handle(exchange, this::runs));
+    }
+
+    // Reads the view of a database source, with the values of columns `ownerColumn` and `idColumn` if not null
+    public interface ViewSource {
+        // THROWS: IOException when failing to read the source's database.
+        CertificateView getView(String source, String ownerColumn, String idColumn) throws IOException;
+    }
+
+    // Builds each source's view, then keeps them refreshed
+    public void start() {
+        refresher.scheduleWithFixedDelay(this::refreshViews, 0, refreshMs, TimeUnit.MILLISECONDS);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        refresher.shutdownNow();
+    }
+
+    // Replaces each source's view with one as of the database file now. The DbConnection only re-reads the file if it has
+    // changed since it was last read (e.g. by a run).
+    private void refreshViews() {
+        EmailerProperties properties = this.properties.get();
+        for (String source : jobs.keySet()) {
+            try {
+                views.put(source, viewSource.getView(source, properties.getOwnerColumn(), properties.getIdColumn()));
+            }
+            catch (IOException | RuntimeException e) { // Failure reading the database, so keep serving the previous view
+                Main.getLogger().warning("[QueryServer] Failure to refresh view of " + source + "! Error: " + e);
+            }
+        }
+    }
+
+    // GET /certificates?source=&from=&to=&format=&limit=&cursor= serves the certificates of `source` (by default the first)
+    // expiring on or after date `from` (by default today) and before date `to` (by default as far ahead as the widest rule),
+    // as "json" (the default) or "csv". At most `limit` are served per page, with the cursor of the next page (if any) in the
+    // X-Next-Cursor header, and the JSON's "next".
+    private void certificates(HttpExchange exchange, Map<String, String> params) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendText(exchange, 405, "Method not allowed");
+            return;
+        }
+        String source = params.containsKey("source") ? params.get("source") : jobs.keySet().iterator().next();
+        if (!jobs.containsKey(source)) {
+            sendText(exchange, 404, "No database source named " + source);
+            return;
+        }
+        CertificateView view = views.get(source);
+        if (view == null) { // Not yet built
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+            sendText(exchange, 503, "Certificates of " + source + " are still being read");
+            return;
+        }
+
+        // Parse the range, page and format, rejecting any that are malformed
+        LocalDate from;
+        LocalDate to;
+        int limit;
+        Cursor cursor;
+        try {
+            from = params.containsKey("from") ? LocalDate.parse(params.get("from")) : LocalDate.now();
+            to = params.containsKey("to") ? LocalDate.parse(params.get("to"))
+                    : from.plusDays(new EscalationRules(properties.get().getRules(), System.currentTimeMillis()).getMaxDays());
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_LIMIT;
+            cursor = params.containsKey("cursor") ? Cursor.decode(params.get("cursor")) : null;
+        }
+        catch (DateTimeParseException | IllegalArgumentException e) {
+            sendText(exchange, 400, "Malformed query: " + e.getMessage());
+            return;
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            sendText(exchange, 400, "limit must be between 1 and " + MAX_LIMIT);
+            return;
+        }
+        String format = params.get("format");
+        if (format == null) {
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            format = accept != null && accept.contains("text/csv") ? CSV : JSON;
+        }
+        if (!CSV.equals(format) && !JSON.equals(format)) {
+            sendText(exchange, 400, "format must be " + JSON + " or " + CSV);
+            return;
+        }
+
+        // The range is a contiguous run of the view. A cursor resumes at the same position whilst the view is unchanged, and
+        // at the same expiry date after it is refreshed.
+        int start = view.indexOf(from.toEpochDay());
+        int end = Math.max(start, view.indexOf(to.toEpochDay()));
+        int position = cursor == null ? start : Math.min(end, Math.max(start, view.indexOf(cursor.day) + cursor.skip));
+        int pageEnd = (int) Math.min(end, (long) position + limit);
+        List<Certificate> page = view.subList(position, pageEnd);
+        String next = pageEnd < end ? Cursor.at(view, pageEnd).encode() : null;
+
+        // The page is wholly determined by the view and the positions served, so it's unchanged whilst they are
+        String etag = "\"" + view.getVersion() + "-" + Integer.toHexString(Objects.hash(source, from, to, position, pageEnd, format)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (next != null) exchange.getResponseHeaders().set("X-Next-Cursor", next);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        byte[] body;
+        if (CSV.equals(format)) {
+            body = toCsv(page).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+        }
+        else {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("source", source);
+            json.put("version", view.getVersion());
+            json.put("from", from.toString());
+            json.put("to", to.toString());
+            json.put("certificates", toJson(page));
+            json.put("next", next);
+            body = gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        }
+        send(exchange, 200, body);
+    }
+
+    // POST /runs?source= triggers an ad-hoc run of `source`'s EmailerJob (or every source's, if none is given), which is sent
+    // and logged like a daily run. Since a run emails every recipient, the request must bear the run token if one is set, and
+    // is refused outright if none is set but the server is reachable from other hosts.
+    private void runs(HttpExchange exchange, Map<String, String> params) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendText(exchange, 405, "Method not allowed");
+            return;
+        }
+        if (runToken == null && !loopback) {
+            sendText(exchange, 403, "Set \"query-run-token\" to trigger runs on a server reachable from other hosts");
+            return;
+        }
+        if (runToken != null && !hasRunToken(exchange)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            sendText(exchange, 401, "Missing or wrong run token");
+            return;
+        }
+        List<String> sources = new ArrayList<>(jobs.keySet());
+        if (params.containsKey("source")) {
+            if (!jobs.containsKey(params.get("source"))) {
+                sendText(exchange, 404, "No database source named " + params.get("source"));
+                return;
+            }
+            sources.retainAll(Collections.singleton(params.get("source")));
+        }
+
+        List<String> triggered = new ArrayList<>();
+        try {
+            for (String source : sources) {
+                scheduler.triggerJob(jobs.get(source));
+                triggered.add(source);
+                Main.getLogger().info("[QueryServer] Triggered ad-hoc run of " + source);
+            }
+        }
+        catch (SchedulerException e) { // Failure to trigger, so report what was triggered before it
+            Main.getLogger().severe("[QueryServer] Failure to trigger ad-hoc run! Error: " + e);
+            sendText(exchange, 500, "Failure to trigger run after triggering " + triggered + ": " + e.getMessage());
+            return;
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("triggered", triggered);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        send(exchange, 202, gson.toJson(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Whether the request's Authorization header bears the run token, compared in constant time so the token can't be
+    // guessed a character at a time
+    private boolean hasRunToken(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(BEARER)) return false;
+        return MessageDigest.isEqual(authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8),
+                runToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A position in a view: the `skip`th certificate expiring on `day`. Encoded opaquely, as URL-safe base64.
+    private static class Cursor {
+        private final long day;
+        private final int skip;
+
+        private Cursor(long day, int skip) {
+            this.day = day;
+            this.skip = skip;
+        }
+
+        // The cursor of position `index` of `view`
+        private static Cursor at(CertificateView view, int index) {
+            long day = view.get(index).getExpiryDay();
+            return new Cursor(day, index - view.indexOf(day));
+        }
+
+        private String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString((day + ":" + skip).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // THROWS: IllegalArgumentException when `cursor` wasn't produced by encode.
+        private static Cursor decode(String cursor) {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 2) throw new IllegalArgumentException("Invalid cursor");
+            int skip = Integer.parseInt(parts[1]);
+            if (skip < 0) throw new IllegalArgumentException("Invalid cursor");
+            return new Cursor(Long.parseLong(parts[0]), skip);
+        }
+    }
+
+    private static List<Map<String, String>> toJson(List<Certificate> certificates) {
+        List<Map<String, String>> rows = new ArrayList<>(certificates.size());
+        for (Certificate certificate : certificates) {
+            Map<String, String> row = new LinkedHashMap<>();
+            row.put("id", certificate.getId());
+            row.put("name", certificate.getName());
+            row.put("owner", certificate.getOwner());
+            row.put("expiry", certificate.getExpiryDate().toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String toCsv(List<Certificate> certificates) {
+        StringBuilder csv = new StringBuilder("id,name,owner,expiry\r\n");
+        for (Certificate certificate : certificates) {
+            csv.append(csvField(certificate.getId())).append(',')
+                    .append(csvField(certificate.getName())).append(',')
+                    .append(csvField(certificate.getOwner())).append(',')
+                    .append(certificate.getExpiryDate()).append("\r\n");
+        }
+        return csv.toString();
+    }
+
+    // Quotes a CSV field (doubling any quotes) if it contains a delimiter, quote or line break. Null is an empty field.
+    private static String csvField(String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    // Runs `handler` with the query's parameters, answering with a server error rather than dropping the connection if it fails
+    private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+        }
+        catch (RuntimeException e) {
+            Main.getLogger().severe("[QueryServer] Failure handling " + exchange.getRequestURI() + "! Error: " + e);
+            sendText(exchange, 500, "Internal error");
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // Decodes the parameters of a raw query string. Of a repeated parameter, the first is kept.
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) return params;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            params.putIfAbsent(name, value);
+        }
+        return params;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, status, (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(status, head ? -1 : body.length);
+        if (head) return;
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+    Typed, immutable snapshot of one of the escalation "rules" within emailerProperties.json: a warning threshold in days
+    before expiry, with its own recipients and the days of the week on which it sends (see EscalationRules).
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class RuleProperties {
+    // Fields are populated by Gson, and never modified afterwards. Optional settings are null when absent.
+    @SerializedName("name")
+    private String name;
+    @SerializedName("days")
+    private int days;
+    @SerializedName("recipients")
+    private List<String> recipients;
+    @SerializedName("weekdays")
+    private List<String> weekdays;
+
+    // Constructs the rule used when none are configured
+    static RuleProperties withinDays(int days) {
+        RuleProperties rule = new RuleProperties();
+        rule.days = days;
+        return rule;
+    }
+
+    private RuleProperties() {
+
+    }
+
+    // Checks the rule's settings, so a misspelt weekday is rejected on load rather than failing every run
+    // THROWS: IOException when a setting is invalid.
+    public void validate() throws IOException {
+        if (days < 0) {
+            throw new IOException("[RuleProperties] \"days\" of rule " + getName() + " must not be negative!");
+        }
+        if (weekdays == null) return;
+        for (String weekday : weekdays) {
+            if (parseDay(weekday) == null) {
+                throw new IOException("[RuleProperties] \"" + weekday + "\" in \"weekdays\" of rule " + getName() + " is not a day of the week!");
+            }
+        }
+    }
+
+    // Name identifying the rule in logs and the send ledger, e.g. "30-day" by default
+    public String getName() {
+        return name == null ? days + "-day" : name;
+    }
+
+    // Certificates expiring within this many days of today (i.e. on an earlier day than today plus `days`) are listed
+    public int getDays() {
+        return days;
+    }
+
+    // Recipients of the rule's emails, or null to send to the top-level "recipients"
+    public List<String> getRecipients() {
+        return recipients == null ? null : Collections.unmodifiableList(recipients);
+    }
+
+    // Whether the rule sends on `day`, which is every day unless "weekdays" (e.g. ["MONDAY", "THURSDAY"]) is set. In
+    // change-capture mode, a rule only sees the changes since the previous run, so those of days it doesn't send on are missed.
+    public boolean isDueOn(DayOfWeek day) {
+        if (weekdays == null || weekdays.isEmpty()) return true;
+        for (String weekday : weekdays) {
+            if (parseDay(weekday) == day) return true;
+        }
+        return false;
+    }
+
+    // The day of the week named `day` (e.g. "Monday"), or null if it isn't one
+    static DayOfWeek parseDay(String day) {
+        if (day == null) return null;
+        try {
+            return DayOfWeek.valueOf(day.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
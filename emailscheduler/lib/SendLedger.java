@@ -0,0 +1,145 @@
+/*
+    A persistent record of which recipients have been sent each run's email, shared by every node of a cluster so that no
+    recipient is sent the same run's email twice.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class SendLedger {
+    private static final String TABLE = "EMAIL_SEND_LEDGER";
+    private static final String STATUS_CLAIMED = "CLAIMED";
+    private static final String STATUS_SENT = "SENT";
+    // Length of the RECIPIENT column, which is only kept for reading the ledger by hand and so is truncated to fit
+    private static final int RECIPIENT_LENGTH = 2000;
+
+    private ClusterProperties properties;
+    private String instanceId;
+
+    // THROWS: SQLException when failing to load the JDBC driver, connect to the database or create the ledger table.
+    public SendLedger(ClusterProperties properties, String instanceId) throws SQLException {
+        this.properties = properties;
+        this.instanceId = instanceId;
+        if (properties.getDriver() != null) {
+            try {
+                Class.forName(properties.getDriver());
+            }
+            catch (ClassNotFoundException e) {
+                throw new SQLException("[SendLedger] JDBC driver " + properties.getDriver() + " not found!", e);
+            }
+        }
+        createTableIfMissing();
+    }
+
+    // Attempts to claim sending run `runId`'s email to `recipient` for this node. Returns true if claimed, or false if it has
+    // already been sent, or is claimed by a node that's still within its lease.
+    // THROWS: SQLException when failing to query the ledger.
+    public boolean claim(String runId, String recipient) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (Connection connection = connect()) {
+            // Claim a recipient nobody has claimed yet
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO " + TABLE + " (RUN_ID, RECIPIENT_HASH, RECIPIENT, STATUS, INSTANCE_ID, CLAIMED_AT) VALUES (?, ?, ?, ?, ?, ?)")) {
+                insert.setString(1, runId);
+                insert.setString(2, hash(recipient));
+                insert.setString(3, recipient.length() <= RECIPIENT_LENGTH ? recipient : recipient.substring(0, RECIPIENT_LENGTH));
+                insert.setString(4, STATUS_CLAIMED);
+                insert.setString(5, instanceId);
+                insert.setLong(6, now);
+                insert.executeUpdate();
+                return true;
+            }
+            catch (SQLException e) {
+                // Class 23 is an integrity constraint violation, i.e. the row exists already. Anything else is a real failure.
+                if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) throw e;
+            }
+
+            // Otherwise take over a claim whose lease has expired (e.g. its node failed part way through the run)
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + TABLE + " SET INSTANCE_ID = ?, CLAIMED_AT = ? WHERE RUN_ID = ? AND RECIPIENT_HASH = ? AND STATUS = ? AND CLAIMED_AT < ?")) {
+                update.setString(1, instanceId);
+                update.setLong(2, now);
+                update.setString(3, runId);
+                update.setString(4, hash(recipient));
+                update.setString(5, STATUS_CLAIMED);
+                update.setLong(6, now - properties.getClaimLeaseMs());
+                return update.executeUpdate() == 1;
+            }
+        }
+    }
+
+    // Records that run `runId`'s email to `recipient` has been sent, provided this node still holds the claim
+    // THROWS: SQLException when failing to update the ledger, or the claim's lease expired and another node has taken it over
+    // (which may then send the email too).
+    public void markSent(String runId, String recipient) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + TABLE + " SET STATUS = ? WHERE RUN_ID = ? AND RECIPIENT_HASH = ? AND STATUS = ? AND INSTANCE_ID = ?")) {
+            update.setString(1, STATUS_SENT);
+            update.setString(2, runId);
+            update.setString(3, hash(recipient));
+            update.setString(4, STATUS_CLAIMED);
+            update.setString(5, instanceId);
+            if (update.executeUpdate() != 1) {
+                throw new SQLException("[SendLedger] Claim of run " + runId + " to " + recipient + " is no longer held by " + instanceId + "!");
+            }
+        }
+    }
+
+    // Gives up this node's claim after a failed send, so a retry of the run (by any node) may claim it again
+    // THROWS: SQLException when failing to update the ledger.
+    public void release(String runId, String recipient) throws SQLException {
+        try (Connection connection = connect();
+             PreparedStatement delete = connection.prepareStatement(
+                     "DELETE FROM " + TABLE + " WHERE RUN_ID = ? AND RECIPIENT_HASH = ? AND STATUS = ? AND INSTANCE_ID = ?")) {
+            delete.setString(1, runId);
+            delete.setString(2, hash(recipient));
+            delete.setString(3, STATUS_CLAIMED);
+            delete.setString(4, instanceId);
+            delete.executeUpdate();
+        }
+    }
+
+    // Hex SHA-256 of `recipient`, on which rows are keyed since a list of recipients may be longer than databases allow in
+    // an index key
+    private static String hash(String recipient) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(recipient.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) { // Every JRE provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(properties.getUrl(), properties.getUser(), properties.getPassword());
+    }
+
+    // Creates the ledger table unless it already exists (there's no portable CREATE TABLE IF NOT EXISTS)
+    private void createTableIfMissing() throws SQLException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            try {
+                statement.executeQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE 1 = 0").close();
+            }
+            catch (SQLException e) { // Table is missing
+                statement.executeUpdate("CREATE TABLE " + TABLE + " (RUN_ID VARCHAR(200) NOT NULL, RECIPIENT_HASH CHAR(64) NOT NULL, "
+                        + "RECIPIENT VARCHAR(" + RECIPIENT_LENGTH + ") NOT NULL, STATUS VARCHAR(16) NOT NULL, INSTANCE_ID VARCHAR(200) NOT NULL, "
+                        + "CLAIMED_AT BIGINT NOT NULL, PRIMARY KEY (RUN_ID, RECIPIENT_HASH))");
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+    A token bucket limiting the rate of sends, allowing short bursts up to its capacity. It slows down whenever the SMTP server
+    signals that it's being sent to too fast, and speeds back up as sends succeed again, so it settles at about the fastest rate
+    the server accepts.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucket {
+    // Fraction of the rate kept after each throttling response, the growth of the rate after each success, and the lowest rate
+    // (per second) it's ever slowed to
+    private static final double THROTTLE_FACTOR = 0.5;
+    private static final double RECOVERY_FACTOR = 1.05;
+    private static final double MIN_PERMITS_PER_SECOND = 1.0 / 60;
+    // Weight of the latest interval in the moving average of intervals between permits
+    private static final double INTERVAL_WEIGHT = 0.2;
+
+    // Configured maximum rate and current (possibly slowed) rate, per second. Infinite when unlimited.
+    private double maxPermitsPerSecond;
+    private double permitsPerSecond;
+    private double capacity;
+
+    // Tokens in the bucket as of the System.nanoTime `refilledAt`. Negative when permits have been reserved ahead of time.
+    private double tokens;
+    private long refilledAt;
+
+    // Moving average of the nanoseconds between permits (0 until two have been given), and the System.nanoTime of the last
+    private double averageIntervalNanos = 0;
+    private long lastPermitAt = -1;
+
+    // A non-positive `permitsPerSecond` means unlimited. Up to `burst` permits may be given at once after a pause.
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = Double.POSITIVE_INFINITY;
+        this.refilledAt = System.nanoTime();
+        setLimit(permitsPerSecond, burst);
+        this.tokens = capacity;
+    }
+
+    // Changes the configured limit, keeping any slowdown in effect (up to the new limit)
+    public synchronized void setLimit(double permitsPerSecond, int burst) {
+        refill(System.nanoTime());
+        this.maxPermitsPerSecond = permitsPerSecond > 0 ? permitsPerSecond : Double.POSITIVE_INFINITY;
+        this.permitsPerSecond = Math.min(this.permitsPerSecond, maxPermitsPerSecond);
+        this.capacity = Math.max(1, burst);
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    // Current rate per second, below the configured maximum whilst slowed down. Infinite when unlimited.
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    // Blocks until the caller may proceed
+    // THROWS: InterruptedException when interrupted whilst waiting.
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (lastPermitAt >= 0) {
+                long interval = now - lastPermitAt;
+                averageIntervalNanos = averageIntervalNanos == 0 ? interval
+                        : averageIntervalNanos + INTERVAL_WEIGHT * (interval - averageIntervalNanos);
+            }
+            refill(now);
+            // Reserve a token, then wait outside the lock until it has been refilled
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            lastPermitAt = now + waitNanos;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    // Halves the rate after the server signals it's being sent to too fast (e.g. an SMTP 421 or 451 response), and cancels
+    // any burst. If unlimited, the rate is first limited to that at which permits were actually being given.
+    public synchronized void throttle() {
+        refill(System.nanoTime());
+        double from = permitsPerSecond;
+        if (Double.isInfinite(from)) {
+            from = averageIntervalNanos > 0 ? TimeUnit.SECONDS.toNanos(1) / averageIntervalNanos : 1;
+        }
+        permitsPerSecond = Math.max(MIN_PERMITS_PER_SECOND, from * THROTTLE_FACTOR);
+        tokens = Math.min(tokens, 0);
+    }
+
+    // Speeds the rate back up after a successful send, until it reaches the configured maximum. When unlimited, it grows until
+    // it no longer holds sends back (and eventually overflows back to infinite).
+    public synchronized void recover() {
+        if (permitsPerSecond >= maxPermitsPerSecond) return;
+        refill(System.nanoTime());
+        permitsPerSecond = Math.min(maxPermitsPerSecond, permitsPerSecond * RECOVERY_FACTOR);
+    }
+
+    // Adds the tokens accrued since the last refill, up to the capacity
+    private void refill(long now) {
+        if (Double.isInfinite(permitsPerSecond)) tokens = capacity;
+        else tokens = Math.min(capacity, tokens + (now - refilledAt) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+    Warms up each source a few minutes before its daily trigger fires: refreshes its DbConnection (snapshotting the database
+    and reading its table metadata if need be), connects to the SMTP server, and renders an email without sending it, so the
+    run itself doesn't pay for class loading, JIT compilation or cold connections.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.omartanner.emailscheduler.Main;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class WarmUp {
+    // Number of certificates rendered by a warm-up
+    private static final int SAMPLE_CERTIFICATES = 100;
+
+    // Stream which discards everything written to it, into which the warm-up email is rendered
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    };
+
+    private Scheduler scheduler;
+    private Map<String, TriggerKey> triggers;
+    private ScheduledExecutorService executor;
+    // The pending warm-up of each source, by source name, and the number of times the warm-ups have been rescheduled, so a
+    // warm-up already running when they are doesn't go on to schedule its successor. Guarded by `this`.
+    private Map<String, ScheduledFuture<?>> pending = new HashMap<>();
+    private long generation = 0;
+    private volatile long leadMs;
+
+    // Warms up each source (the keys of `triggers`) `leadMinutes` minutes before the next firing of its daily trigger in
+    // `scheduler`. The warm-ups are run on this node alone, even when the scheduler is clustered.
+    public WarmUp(Scheduler scheduler, Map<String, TriggerKey> triggers, int leadMinutes) {
+        this.scheduler = scheduler;
+        this.triggers = triggers;
+        this.leadMs = TimeUnit.MINUTES.toMillis(leadMinutes);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Schedules the next warm-up of every source
+    public void start() {
+        reschedule(TimeUnit.MILLISECONDS.toMinutes(leadMs));
+    }
+
+    // Replaces the pending warm-ups with ones `leadMinutes` minutes before the (possibly rescheduled) triggers' next firings.
+    // A non-positive lead disables warm-ups.
+    public synchronized void reschedule(long leadMinutes) {
+        leadMs = TimeUnit.MINUTES.toMillis(leadMinutes);
+        for (ScheduledFuture<?> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+        generation++;
+        for (String source : triggers.keySet()) {
+            scheduleNext(source, generation);
+        }
+    }
+
+    // Warms up each of `sources` now, on the calling thread (e.g. for a class-data archive training run)
+    public static void runNow(Iterable<String> sources) {
+        for (String source : sources) {
+            warmUp(source);
+        }
+    }
+
+    // Schedules the warm-up before the first firing of `source`'s trigger that is at least the lead time away, unless the
+    // warm-ups have been rescheduled since generation `scheduled` or disabled
+    private synchronized void scheduleNext(final String source, final long scheduled) {
+        if (scheduled != generation || leadMs <= 0) return;
+        long now = System.currentTimeMillis();
+        Date fireTime;
+        try {
+            Trigger trigger = scheduler.getTrigger(triggers.get(source));
+            fireTime = trigger == null ? null : trigger.getFireTimeAfter(new Date(now + leadMs));
+        }
+        catch (SchedulerException e) { // Failure reading the trigger, so the run will just be cold
+            Main.getLogger().warning("[WarmUp] Failure to read trigger of " + source + "! Error: " + e);
+            return;
+        }
+        if (fireTime == null) return;
+
+        pending.put(source, executor.schedule(() -> {
+            warmUp(source);
+            scheduleNext(source, scheduled);
+        }, fireTime.getTime() - leadMs - now, TimeUnit.MILLISECONDS));
+    }
+
+    // Warms up `source`. Failures are only logged, since the run itself will try (and report) the same again. Metrics are
+    // muted meanwhile, so the rows matched, pages read and bytes rendered aren't counted as though a run had sent them.
+    private static void warmUp(String source) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        EmailerProperties properties = Main.getConfig().getEmailerProperties();
+        boolean wasMuted = Metrics.isMuted();
+        Metrics.setMuted(true);
+        try {
+            // Refresh the source's index, opening the database if this is its first use
+            EscalationRules rules = new EscalationRules(properties.getRules(), now);
+            List<Certificate> certificates = Main.getDbConnection(source).getCertificates(rules.getMaxDays(),
+                    properties.getOwnerColumn(), properties.getIdColumn());
+
+            // Connect to the SMTP server, leaving the connection in the pool for the run
+            EmailService emailer = EmailService.forServer(properties.getHost(), properties.getPort(),
+                    properties.getUsername(), properties.getPassword());
+            emailer.warmUp();
+
+            // Render an email of the first few certificates, without sending it
+            List<Certificate> sample = certificates.subList(0, Math.min(certificates.size(), SAMPLE_CERTIFICATES));
+            Message message = emailer.createMessage(
+                    new MessageRenderer(sample, now, rules.getMaxDays(), properties.getDigestInlineLimit()).toMultipart(),
+                    EmailerJob.buildSubject(sample.size()), properties.getSender(), String.join(",", properties.getRecipients()));
+            message.writeTo(DISCARD);
+
+            Main.getLogger().info("[WarmUp] Warmed up " + source + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        }
+        catch (IOException | MessagingException | RuntimeException e) {
+            Main.getLogger().warning("[WarmUp] Failure to warm up " + source + "! Error: " + e);
+        }
+        finally {
+            Metrics.setMuted(wasMuted);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+    Tests AsyncLogHandler's ring buffer under concurrent publishers, its handling of a full buffer, and rolling over the file
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogHandlerTest {
+    private File directory;
+    private File file;
+    private AsyncLogHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("logs").toFile();
+        file = new File(directory, "logs.log");
+        handler = new AsyncLogHandler(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        handler.close();
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentPublishersLoseNothingWithinCapacity() throws Exception {
+        final int publishers = 4;
+        final int perPublisher = AsyncLogHandler.CAPACITY / publishers;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            final int publisher = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perPublisher; i++) {
+                    handler.publish(new LogRecord(Level.INFO, "record " + publisher + "-" + i));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(publishers * perPublisher, lines.size());
+        Set<String> messages = new HashSet<>();
+        for (String line : lines) {
+            assertFalse(line, line.contains("Dropped"));
+            messages.add(line.substring(line.indexOf("\"message\":")));
+        }
+        assertEquals(publishers * perPublisher, messages.size());
+    }
+
+    @Test
+    public void overflowIsDroppedAndCounted() throws Exception {
+        BlockingFormatter formatter = blockWriter();
+        // The writer has taken the first record, so a whole buffer more fits before any are dropped
+        for (int i = 0; i < AsyncLogHandler.CAPACITY + 50; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+        formatter.release.countDown();
+        handler.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(1 + AsyncLogHandler.CAPACITY + 1, lines.size());
+        assertTrue(lines.get(1), lines.get(1).contains("[AsyncLogHandler] Dropped 50 records!"));
+    }
+
+    @Test
+    public void severeRecordsWaitForSpace() throws Exception {
+        BlockingFormatter formatter = blockWriter();
+        fillBuffer();
+        Thread publisher = publishSevere();
+        // Still waiting for space, rather than dropped
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+
+        formatter.release.countDown();
+        publisher.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(publisher.isAlive());
+        handler.close();
+
+        List<String> lines = readLines(file);
+        assertTrue(lines.get(lines.size() - 1).contains("severe"));
+    }
+
+    @Test
+    public void severeRecordStopsWaitingOnClose() throws Exception {
+        BlockingFormatter formatter = blockWriter();
+        fillBuffer();
+        Thread publisher = publishSevere();
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+
+        // The writer is still stuck, so close gives up waiting for it, but the publisher mustn't wait forever either
+        Thread closer = new Thread(handler::close);
+        closer.start();
+        publisher.join(TimeUnit.SECONDS.toMillis(2));
+        assertFalse(publisher.isAlive());
+
+        formatter.release.countDown();
+        closer.join();
+    }
+
+    @Test
+    public void rollsOverAtTheSizeLimit() throws Exception {
+        handler.configure(-1, 1000, TimeUnit.HOURS.toMillis(1), 100);
+        for (int i = 0; i < 200; i++) {
+            handler.publish(new LogRecord(Level.INFO, String.format("record %03d", i)));
+        }
+        handler.close();
+
+        File[] rolled = rolledFiles();
+        assertTrue(rolled.length > 1);
+        // Every record is kept, across the rolled files and the current one, and no file grows much past the limit
+        int count = 0;
+        for (File f : rolled) {
+            assertTrue(f.length() < 1000 + 200);
+            count += readLines(f).size();
+        }
+        count += readLines(file).size();
+        assertEquals(200, count);
+    }
+
+    @Test
+    public void keepsAtMostMaxFilesRolled() throws Exception {
+        handler.configure(-1, 1000, TimeUnit.HOURS.toMillis(1), 2);
+        for (int i = 0; i < 200; i++) {
+            handler.publish(new LogRecord(Level.INFO, String.format("record %03d", i)));
+        }
+        handler.close();
+
+        assertEquals(2, rolledFiles().length);
+        // The most recent records are the ones kept
+        List<String> lines = readLines(file);
+        assertTrue(lines.get(lines.size() - 1).contains("record 199"));
+    }
+
+    // Publishes a record and waits until the writer thread is stuck formatting it, so nothing more is drained until released
+    private BlockingFormatter blockWriter() throws InterruptedException {
+        BlockingFormatter formatter = new BlockingFormatter();
+        handler.setFormatter(formatter);
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        assertTrue(formatter.blocked.await(5, TimeUnit.SECONDS));
+        return formatter;
+    }
+
+    private void fillBuffer() {
+        for (int i = 0; i < AsyncLogHandler.CAPACITY; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+    }
+
+    private Thread publishSevere() {
+        Thread publisher = new Thread(() -> handler.publish(new LogRecord(Level.SEVERE, "severe")));
+        publisher.setDaemon(true);
+        publisher.start();
+        return publisher;
+    }
+
+    private File[] rolledFiles() {
+        File[] rolled = directory.listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        return rolled == null ? new File[0] : rolled;
+    }
+
+    private static List<String> readLines(File f) throws IOException {
+        return Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+    }
+
+    // Formats messages as is, except that the first blocks until released
+    private static class BlockingFormatter extends Formatter {
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String formatMessage(LogRecord record) {
+            if (blocked.getCount() > 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return record.getMessage();
+        }
+
+        @Override
+        public String format(LogRecord record) {
+            return formatMessage(record);
+        }
+    }
+}
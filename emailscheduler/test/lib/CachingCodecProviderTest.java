@@ -0,0 +1,192 @@
+/*
+    Tests CachingCodecProvider's page cache in front of a fake codec which counts the pages it decodes
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.healthmarketscience.jackcess.impl.CodecHandler;
+import com.healthmarketscience.jackcess.impl.CodecProvider;
+import com.healthmarketscience.jackcess.impl.DefaultCodecProvider;
+import com.healthmarketscience.jackcess.impl.PageChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CachingCodecProviderTest {
+    private static final int PAGE_SIZE = 64;
+    // Each cached page holds its encoded and decoded content
+    private static final int CACHED_PAGE_BYTES = 2 * PAGE_SIZE;
+
+    private CountingProvider codec;
+    private CachingCodecProvider provider;
+    private CodecHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        codec = new CountingProvider();
+        provider = new CachingCodecProvider(codec, 3 * CACHED_PAGE_BYTES);
+        handler = provider.createHandler(null, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void repeatedPageIsServedFromTheCache() throws IOException {
+        ByteBuffer first = decode(1, page(1));
+        ByteBuffer second = decode(1, page(1));
+
+        assertEquals(1, codec.decodes);
+        assertEquals(first.position(), second.position());
+        assertEquals(first.limit(), second.limit());
+        assertArrayEquals(contents(first), contents(second));
+        assertArrayEquals(xor(page(1)), contents(second));
+    }
+
+    @Test
+    public void changedPageIsDecodedAgain() throws IOException {
+        decode(1, page(1));
+        ByteBuffer changed = decode(1, page(2));
+
+        assertEquals(2, codec.decodes);
+        assertArrayEquals(xor(page(2)), contents(changed));
+        assertEquals(1, provider.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedAtTheByteBudget() throws IOException {
+        decode(1, page(1));
+        decode(2, page(2));
+        decode(3, page(3));
+        // Page 1 is now more recently used than page 2
+        decode(1, page(1));
+        assertEquals(3, codec.decodes);
+
+        decode(4, page(4));
+        assertEquals(4, codec.decodes);
+        assertEquals(3, provider.size());
+        assertEquals(3 * CACHED_PAGE_BYTES, provider.getBytes());
+
+        decode(1, page(1));
+        decode(3, page(3));
+        decode(4, page(4));
+        assertEquals(4, codec.decodes);
+        decode(2, page(2));
+        assertEquals(5, codec.decodes);
+    }
+
+    @Test
+    public void pageLargerThanTheBudgetIsNotKept() throws IOException {
+        CachingCodecProvider small = new CachingCodecProvider(codec, CACHED_PAGE_BYTES - 1);
+        CodecHandler smallHandler = small.createHandler(null, StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(PAGE_SIZE);
+        smallHandler.decodePage(ByteBuffer.wrap(page(1)), out, 1);
+
+        assertEquals(0, small.size());
+        assertEquals(0, small.getBytes());
+    }
+
+    @Test
+    public void encodingAPageInvalidatesIt() throws IOException {
+        decode(1, page(1));
+        decode(2, page(2));
+        handler.encodePage(ByteBuffer.wrap(page(1)), 1, 0);
+
+        assertEquals(1, codec.encodes);
+        assertEquals(1, provider.size());
+        assertEquals(CACHED_PAGE_BYTES, provider.getBytes());
+        decode(1, page(1));
+        assertEquals(3, codec.decodes);
+    }
+
+    @Test
+    public void unencryptedDatabasesBypassTheCache() throws IOException {
+        CodecProvider unencrypted = (channel, charset) -> DefaultCodecProvider.DUMMY_HANDLER;
+        assertSame(DefaultCodecProvider.DUMMY_HANDLER,
+                new CachingCodecProvider(unencrypted, CACHED_PAGE_BYTES).createHandler(null, StandardCharsets.UTF_8));
+    }
+
+    // Decodes `encoded` as page `pageNumber` through the cache, into a fresh buffer
+    private ByteBuffer decode(int pageNumber, byte[] encoded) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(PAGE_SIZE);
+        handler.decodePage(ByteBuffer.wrap(encoded), out, pageNumber);
+        return out;
+    }
+
+    // A page filled with `seed`
+    private static byte[] page(int seed) {
+        byte[] page = new byte[PAGE_SIZE];
+        Arrays.fill(page, (byte) seed);
+        return page;
+    }
+
+    private static byte[] contents(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] xor(byte[] page) {
+        byte[] decoded = new byte[page.length];
+        for (int i = 0; i < page.length; i++) {
+            decoded[i] = (byte) (page[i] ^ CountingHandler.KEY);
+        }
+        return decoded;
+    }
+
+    // Provides a CountingHandler, counting the pages every handler it provides decodes and encodes
+    private static class CountingProvider implements CodecProvider {
+        private int decodes;
+        private int encodes;
+
+        @Override
+        public CodecHandler createHandler(PageChannel channel, Charset charset) {
+            return new CountingHandler(this);
+        }
+    }
+
+    // "Decrypts" each page by XORing its bytes with KEY, leaving the output flipped ready to read
+    private static class CountingHandler implements CodecHandler {
+        private static final byte KEY = 0x5A;
+
+        private CountingProvider provider;
+
+        private CountingHandler(CountingProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public boolean canEncodePartialPage() {
+            return true;
+        }
+
+        @Override
+        public boolean canDecodeInline() {
+            return false;
+        }
+
+        @Override
+        public void decodePage(ByteBuffer inPage, ByteBuffer outPage, int pageNumber) {
+            provider.decodes++;
+            outPage.clear();
+            for (int i = 0; i < inPage.limit(); i++) {
+                outPage.put((byte) (inPage.get(i) ^ KEY));
+            }
+            outPage.flip();
+        }
+
+        @Override
+        public ByteBuffer encodePage(ByteBuffer page, int pageNumber, int pageOffset) {
+            provider.encodes++;
+            return page;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+    Tests CertificateSorter's sort and top-K selection against a stable Collections.sort of the same certificates
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CertificateSorterTest {
+    // Collections.sort is stable, so certificates expiring on the same day keep their input order, as CertificateSorter's do
+    private static final Comparator<Certificate> BY_EXPIRY = Comparator.comparingLong(Certificate::getExpiryDay);
+
+    @Test
+    public void sortMatchesCollectionsSort() {
+        // Few distinct days, so there are plenty of ties
+        List<Certificate> certificates = randomCertificates(500, 20, 1);
+        List<Certificate> expected = expectedOrder(certificates);
+
+        CertificateSorter.sort(certificates);
+        assertEquals(expected, certificates);
+    }
+
+    @Test
+    public void parallelSortMatchesCollectionsSort() {
+        // Above the parallel threshold
+        List<Certificate> certificates = randomCertificates(20000, 1000, 2);
+        List<Certificate> expected = expectedOrder(certificates);
+
+        CertificateSorter.sort(certificates);
+        assertEquals(expected, certificates);
+    }
+
+    @Test
+    public void sortLeavesSortedInputAlone() {
+        List<Certificate> certificates = expectedOrder(randomCertificates(100, 10, 3));
+        List<Certificate> expected = new ArrayList<>(certificates);
+
+        CertificateSorter.sort(certificates);
+        assertEquals(expected, certificates);
+    }
+
+    @Test
+    public void soonestMatchesSortedPrefix() {
+        List<Certificate> certificates = randomCertificates(1000, 30, 4);
+        List<Certificate> expected = expectedOrder(certificates);
+
+        for (int k : new int[]{1, 2, 7, 100, 999}) {
+            assertEquals("k=" + k, expected.subList(0, k), CertificateSorter.soonest(certificates, k));
+        }
+    }
+
+    @Test
+    public void soonestReturnsEverythingWhenKIsAtLeastN() {
+        List<Certificate> certificates = randomCertificates(50, 5, 5);
+        List<Certificate> expected = expectedOrder(certificates);
+
+        assertEquals(expected, CertificateSorter.soonest(certificates, 50));
+        assertEquals(expected, CertificateSorter.soonest(certificates, 51));
+        assertEquals(expected, CertificateSorter.soonest(certificates, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void soonestOfNoneIsEmpty() {
+        List<Certificate> certificates = randomCertificates(50, 5, 6);
+
+        assertEquals(0, CertificateSorter.soonest(certificates, 0).size());
+        assertEquals(0, CertificateSorter.soonest(certificates, -1).size());
+        assertEquals(0, CertificateSorter.soonest(new ArrayList<Certificate>(), 10).size());
+    }
+
+    @Test
+    public void soonestDoesNotReorderItsInput() {
+        List<Certificate> certificates = randomCertificates(200, 10, 7);
+        List<Certificate> original = new ArrayList<>(certificates);
+
+        CertificateSorter.soonest(certificates, 10);
+        assertEquals(original, certificates);
+    }
+
+    // `count` certificates expiring on random days (some already expired) among `days` distinct days, every third with a
+    // null name
+    private static List<Certificate> randomCertificates(int count, int days, long seed) {
+        Random random = new Random(seed);
+        long today = EscalationRules.epochDay(System.currentTimeMillis());
+        List<Certificate> certificates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = i % 3 == 0 ? null : "Certificate " + i;
+            certificates.add(new Certificate(today - days / 4 + random.nextInt(days), name, null, Integer.toString(i)));
+        }
+        return certificates;
+    }
+
+    private static List<Certificate> expectedOrder(List<Certificate> certificates) {
+        List<Certificate> expected = new ArrayList<>(certificates);
+        Collections.sort(expected, BY_EXPIRY);
+        return expected;
+    }
+}
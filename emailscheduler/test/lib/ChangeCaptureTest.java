@@ -0,0 +1,100 @@
+/*
+    Tests that ChangeCapture's snapshot only records the certificates whose alerts were sent
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeCaptureTest {
+    private File directory;
+    private EscalationRules rules;
+    private long today;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshots").toFile();
+        long now = System.currentTimeMillis();
+        rules = new EscalationRules(Collections.singletonList(RuleProperties.withinDays(90)), now);
+        today = EscalationRules.epochDay(now);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Test
+    public void unsentCertificatesAreReportedAgain() throws IOException {
+        List<Certificate> certificates = certificates("a", "b", "c");
+        ChangeCapture capture = new ChangeCapture(directory, "test");
+        assertEquals(3, capture.diff(certificates, rules).getEntered().size());
+        // As when "max-certificates" is 2
+        capture.commit(certificates.subList(0, 2));
+
+        ChangeCapture.Delta delta = new ChangeCapture(directory, "test").diff(certificates("a", "b", "c"), rules);
+        assertEquals(1, delta.getRows().size());
+        assertEquals("c", delta.getRows().get(0).getId());
+    }
+
+    @Test
+    public void unsentChangeKeepsPreviousEntry() throws IOException {
+        ChangeCapture capture = new ChangeCapture(directory, "test");
+        List<Certificate> first = certificates("a");
+        capture.diff(first, rules);
+        capture.commit(first);
+
+        // Renamed, but its alert isn't sent
+        capture = new ChangeCapture(directory, "test");
+        assertEquals(1, capture.diff(Collections.singletonList(new Certificate(today + 10, "renamed", null, "a")), rules)
+                .getChanged().size());
+        capture.commit(Collections.<Certificate>emptyList());
+
+        ChangeCapture.Delta delta = new ChangeCapture(directory, "test")
+                .diff(Collections.singletonList(new Certificate(today + 10, "renamed", null, "a")), rules);
+        assertEquals(1, delta.getChanged().size());
+    }
+
+    @Test
+    public void renewalsOnlyLeaveNoRows() throws IOException {
+        ChangeCapture capture = new ChangeCapture(directory, "test");
+        List<Certificate> first = certificates("a", "b");
+        capture.diff(first, rules);
+        capture.commit(first);
+
+        capture = new ChangeCapture(directory, "test");
+        ChangeCapture.Delta delta = capture.diff(certificates("a"), rules);
+        assertTrue(delta.getRows().isEmpty());
+        assertEquals(1, delta.getRenewed());
+        capture.commit(Collections.<Certificate>emptyList());
+
+        // The renewal is recorded, so it isn't counted again
+        assertEquals(0, new ChangeCapture(directory, "test").diff(certificates("a"), rules).getRenewed());
+    }
+
+    // Certificates with ids `ids`, expiring on successive days from 10 days' time
+    private List<Certificate> certificates(String... ids) {
+        Certificate[] certificates = new Certificate[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            certificates[i] = new Certificate(today + 10 + i, "Certificate " + ids[i], null, ids[i]);
+        }
+        return Arrays.asList(certificates);
+    }
+}
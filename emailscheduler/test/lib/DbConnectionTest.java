@@ -0,0 +1,143 @@
+/*
+    Tests that DbConnection's expiry index is the same however many partitions the table is read in
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DbConnectionTest {
+    // Enough rows for three partitions of at least 32768 rows each
+    private static final int ROWS = 100000;
+    // Covers every synthetic expiry date, which are within two years of today
+    private static final int WITHIN_DAYS = 1000;
+
+    private static File dbFile;
+
+    @BeforeClass
+    public static void createDatabase() throws IOException {
+        dbFile = SyntheticDatabase.create(ROWS);
+    }
+
+    @Test
+    public void partitionedIndexMatchesSinglePartition() throws InterruptedException, ExecutionException {
+        List<Certificate> single = certificatesWithThreads(1);
+        List<Certificate> partitioned = certificatesWithThreads(4);
+
+        assertEquals(ROWS, single.size());
+        assertEquals(single.size(), partitioned.size());
+        for (int i = 0; i < single.size(); i++) {
+            assertEquals(single.get(i).getId(), partitioned.get(i).getId());
+        }
+        for (int i = 1; i < partitioned.size(); i++) {
+            assertTrue(partitioned.get(i - 1).getExpiryDay() <= partitioned.get(i).getExpiryDay());
+        }
+    }
+
+    @Test
+    public void failedRebuildIsRetried() throws IOException {
+        File copy = File.createTempFile("emailscheduler-test", ".accdb");
+        try {
+            Files.copy(dbFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            DbConnection connection = new DbConnection(copy.getPath(), "");
+            try {
+                String version = connection.getView(null, null).getVersion();
+
+                // Replace the file with one that can't be opened, so the rebuild fails
+                Files.write(copy.toPath(), new byte[] {1, 2, 3});
+                copy.setLastModified(copy.lastModified() + 2000);
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    try {
+                        connection.getView(null, null);
+                        fail("Index of an unreadable file must not be served");
+                    }
+                    catch (IOException | RuntimeException e) {
+                        // Expected, on every attempt rather than just the first
+                    }
+                }
+
+                // Restore the file, which is picked up as a new version
+                Files.copy(dbFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copy.setLastModified(copy.lastModified() + 4000);
+                CertificateView view = connection.getView(null, null);
+                assertNotEquals(version, view.getVersion());
+                assertEquals(ROWS, connection.getCertificates(WITHIN_DAYS, null, null).size());
+            }
+            finally {
+                connection.close();
+            }
+        }
+        finally {
+            Files.deleteIfExists(copy.toPath());
+        }
+    }
+
+    @Test
+    public void closeDeletesTheSnapshotAndStopsRefreshing() throws IOException {
+        Set<String> before = snapshotNames();
+        DbConnection connection = new DbConnection(dbFile.getPath(), "");
+        Set<String> taken = snapshotNames();
+        taken.removeAll(before);
+        assertEquals(1, taken.size());
+
+        connection.close();
+        Set<String> after = snapshotNames();
+        after.retainAll(taken);
+        assertEquals(0, after.size());
+        try {
+            connection.getView(null, null);
+            fail("A closed connection must not take another snapshot");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+        Set<String> retaken = snapshotNames();
+        retaken.removeAll(before);
+        assertEquals(0, retaken.size());
+    }
+
+    // Names of the snapshots (or other copies of a database) in the temporary directory
+    private static Set<String> snapshotNames() {
+        String[] names = new File(System.getProperty("java.io.tmpdir"))
+                .list((dir, name) -> name.startsWith("emailscheduler-") && name.endsWith(".accdb"));
+        return names == null ? new HashSet<String>() : new HashSet<>(Arrays.asList(names));
+    }
+
+    // Builds the index on a pool of `threads` threads, which sets the number of partitions, and returns every certificate
+    private static List<Certificate> certificatesWithThreads(int threads) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(() -> {
+                DbConnection connection = new DbConnection(dbFile.getPath(), "", DbConnection.DEFAULT_PAGE_CACHE_MB,
+                        SyntheticDatabase.OWNER_COLUMN, SyntheticDatabase.ID_COLUMN);
+                try {
+                    return connection.getCertificates(WITHIN_DAYS, SyntheticDatabase.OWNER_COLUMN, SyntheticDatabase.ID_COLUMN);
+                }
+                finally {
+                    connection.close();
+                }
+            }).get();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
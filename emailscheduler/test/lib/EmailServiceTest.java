@@ -0,0 +1,113 @@
+/*
+    Tests EmailService's pooled sendBatch against an in-process SMTP server, and compares its throughput and latency to
+    sending each message on a connection of its own (Transport.send, as EmailService used to).
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class EmailServiceTest {
+    private static final int MESSAGES = 50;
+    private static final String ADDRESS = "test@localhost";
+
+    private SmtpSink sink;
+    private EmailService emailer;
+
+    @Before
+    public void setUp() throws IOException {
+        sink = new SmtpSink();
+        emailer = new EmailService("localhost", sink.getPort(), "test", "test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        emailer.close();
+        sink.close();
+    }
+
+    @Test
+    public void sendBatchSendsEveryMessageOverOneConnection() throws MessagingException {
+        emailer.sendBatch(messages(MESSAGES));
+
+        assertEquals(MESSAGES, sink.getMessages());
+        assertEquals(1, sink.getConnections());
+    }
+
+    @Test
+    public void connectionIsReusedAcrossBatches() throws MessagingException {
+        emailer.sendBatch(messages(1));
+        emailer.sendBatch(messages(1));
+        emailer.warmUp();
+
+        assertEquals(2, sink.getMessages());
+        assertEquals(1, sink.getConnections());
+    }
+
+    @Test
+    public void failedConnectionIsNotReused() throws MessagingException {
+        sink.reject(1, "554 5.7.1 Rejected");
+        try {
+            emailer.sendBatch(messages(1));
+        }
+        catch (MessagingException e) {
+            // Expected
+        }
+        emailer.sendBatch(messages(1));
+
+        assertEquals(1, sink.getMessages());
+        assertEquals(2, sink.getConnections());
+    }
+
+    // Reports the throughput and mean latency per message of both paths. Only the connection counts are asserted, since
+    // timings vary from machine to machine.
+    @Test
+    public void pooledBatchComparedToConnectionPerMessage() throws MessagingException {
+        List<Message> unpooled = messages(MESSAGES);
+        long start = System.nanoTime();
+        for (Message message : unpooled) {
+            Transport.send(message);
+        }
+        long unpooledNanos = System.nanoTime() - start;
+        int unpooledConnections = sink.getConnections();
+
+        List<Message> pooled = messages(MESSAGES);
+        start = System.nanoTime();
+        emailer.sendBatch(pooled);
+        long pooledNanos = System.nanoTime() - start;
+        int pooledConnections = sink.getConnections() - unpooledConnections;
+
+        report("connection per message", unpooledNanos, unpooledConnections);
+        report("pooled sendBatch", pooledNanos, pooledConnections);
+        assertEquals(2 * MESSAGES, sink.getMessages());
+        assertEquals(MESSAGES, unpooledConnections);
+        assertEquals(1, pooledConnections);
+    }
+
+    private List<Message> messages(int count) throws MessagingException {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(emailer.createMessage("<p>Message " + i + "</p>", "Test " + i, ADDRESS, ADDRESS));
+        }
+        return messages;
+    }
+
+    private static void report(String path, long nanos, int connections) {
+        System.out.println(String.format("[EmailServiceTest] %-24s %8.1f msg/s %8.3f ms/msg %4d connections", path,
+                MESSAGES / (nanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                nanos / (double) MESSAGES / TimeUnit.MILLISECONDS.toNanos(1), connections));
+    }
+}
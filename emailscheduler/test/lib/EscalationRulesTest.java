@@ -0,0 +1,56 @@
+/*
+    Tests EscalationRules' thresholds and levels against certificates expiring on known days
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EscalationRulesTest {
+    private static final long NOW = System.currentTimeMillis();
+    private static final long TODAY = EscalationRules.epochDay(NOW);
+
+    private final RuleProperties ninety = RuleProperties.withinDays(90);
+    private final RuleProperties thirty = RuleProperties.withinDays(30);
+    private final EscalationRules rules = new EscalationRules(Arrays.asList(thirty, ninety), NOW);
+
+    @Test
+    public void rulesAreWidestFirst() {
+        assertEquals(90, rules.getMaxDays());
+        assertEquals(ninety, rules.getRules().get(0));
+    }
+
+    @Test
+    public void withinStopsAtEachBoundary() {
+        List<Certificate> certificates = certificatesIn(-1, 0, 29, 30, 89, 90, 200);
+
+        assertEquals(5, rules.within(certificates, ninety).size());
+        assertEquals(3, rules.within(certificates, thirty).size());
+        assertEquals(0, rules.within(new ArrayList<Certificate>(), ninety).size());
+        assertEquals(2, rules.within(certificatesIn(-5, -4), thirty).size());
+    }
+
+    @Test
+    public void levelCountsThresholdsAndExpiry() {
+        assertEquals(3, rules.levelOf(TODAY - 1));
+        assertEquals(2, rules.levelOf(TODAY));
+        assertEquals(1, rules.levelOf(TODAY + 30));
+        assertEquals(0, rules.levelOf(TODAY + 90));
+    }
+
+    // Certificates expiring the given numbers of days from today, which must be in ascending order
+    private static List<Certificate> certificatesIn(int... days) {
+        List<Certificate> certificates = new ArrayList<>();
+        for (int day : days) {
+            certificates.add(new Certificate(TODAY + day, "Certificate " + day, null, Integer.toString(day)));
+        }
+        return certificates;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+    Tests MessageRenderer by writing its rendered content into a MimeMessage and parsing the message back
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.Test;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRendererTest {
+    private static final long NOW = System.currentTimeMillis();
+    private static final long TODAY = EscalationRules.epochDay(NOW);
+
+    private final Session session = Session.getInstance(new Properties());
+    private final List<Certificate> certificates = Arrays.asList(
+            new Certificate(TODAY + 3, "alpha.example.com", null, null),
+            new Certificate(TODAY + 10, "<b>Bob's</b> \"cert\" & co", null, null),
+            new Certificate(TODAY + 20, "gamma, the third", null, null));
+
+    @Test
+    public void listsEveryCertificateInlineUpToTheLimit() throws Exception {
+        for (int inlineLimit : new int[]{-1, 3, 100}) {
+            MessageRenderer renderer = new MessageRenderer(certificates, NOW, 30, inlineLimit);
+            assertFalse(renderer.isDigest());
+
+            Multipart parsed = roundTrip(renderer);
+            assertEquals(1, parsed.getCount());
+            String html = (String) parsed.getBodyPart(0).getContent();
+            assertTrue(html.contains("<b>30</b> days"));
+            assertTrue(html.contains("<li><p><b>alpha.example.com</b> - 0 weeks, 3 days</p></li>"));
+            assertTrue(html.contains("<li><p><b>gamma, the third</b> - 2 weeks, 6 days</p></li>"));
+            assertFalse(html.contains("attached"));
+        }
+    }
+
+    @Test
+    public void attachesTheFullListAboveTheLimit() throws Exception {
+        MessageRenderer renderer = new MessageRenderer(certificates, NOW, 30, 2);
+        assertTrue(renderer.isDigest());
+
+        Multipart parsed = roundTrip(renderer);
+        assertEquals(2, parsed.getCount());
+
+        String html = (String) parsed.getBodyPart(0).getContent();
+        assertTrue(html.contains("alpha.example.com"));
+        assertFalse(html.contains("gamma"));
+        assertTrue(html.contains("Showing the first <b>2</b> of <b>3</b> certificates"));
+
+        BodyPart attachment = parsed.getBodyPart(1);
+        assertEquals("certificates.csv.gz", attachment.getFileName());
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(attachment.getInputStream()),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        assertEquals(Arrays.asList(
+                "certificateName,certificateExpireDate,daysRemaining",
+                "alpha.example.com," + certificates.get(0).getExpiryDate() + ",3",
+                "\"<b>Bob's</b> \"\"cert\"\" & co\"," + certificates.get(1).getExpiryDate() + ",10",
+                "\"gamma, the third\"," + certificates.get(2).getExpiryDate() + ",20"), lines);
+    }
+
+    @Test
+    public void escapesCertificateNames() throws Exception {
+        MessageRenderer renderer = new MessageRenderer(certificates, NOW, 30, -1);
+        renderer.setSummary("Only <b>changes</b>");
+
+        String html = (String) roundTrip(renderer).getBodyPart(0).getContent();
+        assertTrue(html.startsWith("<p>Only <b>changes</b></p>"));
+        assertTrue(html.contains("<li><p><b>&lt;b&gt;Bob&#39;s&lt;/b&gt; &quot;cert&quot; &amp; co</b> - 1 weeks, 3 days</p></li>"));
+        assertEquals(html, renderer.renderHtml());
+    }
+
+    @Test
+    public void partsNeitherFlushNorCloseTheMimeStream() throws Exception {
+        Multipart content = new MessageRenderer(certificates, NOW, 30, 1).toMultipart();
+        for (int i = 0; i < content.getCount(); i++) {
+            RecordingOutputStream out = new RecordingOutputStream();
+            content.getBodyPart(i).getDataHandler().writeTo(out);
+            assertTrue(out.size() > 0);
+            assertFalse(out.flushed);
+            assertFalse(out.closed);
+        }
+    }
+
+    // Writes a message with the renderer's content out, and returns the content parsed back from the bytes written
+    private Multipart roundTrip(MessageRenderer renderer) throws MessagingException, IOException {
+        MimeMessage message = new MimeMessage(session);
+        message.setSubject("Test");
+        message.setContent(renderer.toMultipart());
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        return (Multipart) parsed.getContent();
+    }
+
+    // Records whether it was flushed or closed
+    private static class RecordingOutputStream extends ByteArrayOutputStream {
+        private boolean flushed;
+        private boolean closed;
+
+        @Override
+        public void flush() {
+            flushed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
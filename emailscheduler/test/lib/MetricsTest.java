@@ -0,0 +1,51 @@
+/*
+    Tests that Metrics muted on a thread (e.g. whilst warming up) discard only that thread's recordings
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MetricsTest {
+    @After
+    public void tearDown() {
+        Metrics.setMuted(false);
+    }
+
+    @Test
+    public void mutedThreadRecordsNothing() {
+        Metrics.Counter counter = Metrics.counter("test_muted_counter");
+        Metrics.Timer timer = Metrics.timer("test_muted_timer");
+        counter.add(1);
+        timer.record(10);
+
+        Metrics.setMuted(true);
+        counter.add(5);
+        timer.record(1000);
+        Metrics.setMuted(false);
+
+        assertEquals(1, counter.get());
+        assertEquals(1, timer.getCount());
+        assertEquals(10, timer.getMaxNanos());
+    }
+
+    @Test
+    public void otherThreadsStillRecord() throws InterruptedException {
+        Metrics.Counter counter = Metrics.counter("test_other_thread_counter");
+        Metrics.setMuted(true);
+        Thread thread = new Thread(() -> {
+            assertFalse(Metrics.isMuted());
+            counter.add(3);
+        });
+        thread.start();
+        thread.join();
+        counter.add(5);
+
+        assertEquals(3, counter.get());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+    Tests the OutboxDispatcher's sending, pacing, backoff on throttling responses, and waiting for emails not yet due, against
+    an in-process SMTP server
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxDispatcherTest {
+    private static final String ADDRESS = "test@localhost";
+
+    private File directory;
+    private SmtpSink sink;
+    private EmailService emailer;
+    private CountingOutbox outbox;
+    private OutboxDispatcher dispatcher;
+
+    // Outbox which counts how often its pending emails are listed, i.e. the drains of each host
+    private static class CountingOutbox extends Outbox {
+        private final AtomicInteger listings = new AtomicInteger();
+
+        private CountingOutbox(File directory) throws IOException {
+            super(directory);
+        }
+
+        @Override
+        public List<File> pending(String host) {
+            listings.incrementAndGet();
+            return super.pending(host);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("outbox").toFile();
+        sink = new SmtpSink();
+        outbox = new CountingOutbox(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatcher != null) dispatcher.stop();
+        if (emailer != null) emailer.close();
+        sink.close();
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void sendsEveryQueuedEmail() throws Exception {
+        start("");
+        for (int i = 0; i < 3; i++) {
+            outbox.enqueue(emailer, message("Email " + i));
+        }
+
+        assertTrue(await(() -> sink.getMessages() == 3, 5000));
+        assertTrue(await(() -> outbox.pending(host()).isEmpty(), 5000));
+    }
+
+    @Test
+    public void pacesSendsToTheHost() throws Exception {
+        // Queue the emails before starting, so they are all sent by one drain
+        start(", \"max-sends-per-second\": 20", false);
+        for (int i = 0; i < 6; i++) {
+            outbox.enqueue(emailer, message("Email " + i));
+        }
+        long begin = System.nanoTime();
+        dispatcher.start();
+
+        assertTrue(await(() -> sink.getMessages() == 6, 5000));
+        // The first is immediate, then each of the rest waits 50ms
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) >= 250);
+    }
+
+    @Test
+    public void backsOffWhenThrottled() throws Exception {
+        long throttledBefore = Metrics.counter(Metrics.SEND_THROTTLED).get();
+        long retriesBefore = Metrics.counter(Metrics.SEND_RETRIES).get();
+        sink.reject(1, "451 4.7.1 Rate limited, try again later");
+        start("");
+        long begin = System.nanoTime();
+        outbox.enqueue(emailer, message("Throttled"));
+
+        // Rejected once, then retried only after the backoff (at least half of the 5s base), rather than straight away
+        assertTrue(await(() -> Metrics.counter(Metrics.SEND_THROTTLED).get() == throttledBefore + 1, 5000));
+        TimeUnit.MILLISECONDS.sleep(1000);
+        assertEquals(0, sink.getMessages());
+
+        assertTrue(await(() -> sink.getMessages() == 1, 10000));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) >= 2500);
+        // A throttling response slows down and backs off, but doesn't count as a failed attempt at the email
+        assertEquals(retriesBefore, Metrics.counter(Metrics.SEND_RETRIES).get());
+        assertTrue(await(() -> outbox.pending(host()).isEmpty(), 5000));
+    }
+
+    @Test
+    public void waitsForAnEmailNotYetDueWithoutSpinning() throws Exception {
+        start("");
+        long due = System.currentTimeMillis() + 1500;
+        outbox.enqueue(emailer, message("Later"), due);
+
+        TimeUnit.MILLISECONDS.sleep(1000);
+        assertEquals(0, sink.getMessages());
+        // One drain found the email not yet due, and the next was scheduled for when it is, rather than waking over and over
+        assertTrue("Drained " + outbox.listings.get() + " times", outbox.listings.get() <= 4);
+
+        assertTrue(await(() -> sink.getMessages() == 1, 5000));
+        assertTrue(System.currentTimeMillis() >= due);
+    }
+
+    private void start(String extraProperties) throws IOException {
+        start(extraProperties, true);
+    }
+
+    // Starts (if `begin`) a dispatcher sending to the sink, with the emailer properties plus `extraProperties`
+    private void start(String extraProperties, boolean begin) throws IOException {
+        final EmailerProperties properties = new Gson().fromJson("{\"host\": \"localhost\", \"port\": " + sink.getPort()
+                + ", \"username\": \"test\", \"password\": \"test\", \"sender\": \"" + ADDRESS + "\"" + extraProperties + "}",
+                EmailerProperties.class);
+        properties.validate();
+        emailer = EmailService.forServer(properties.getHost(), properties.getPort(), properties.getUsername(), properties.getPassword());
+        dispatcher = new OutboxDispatcher(outbox, 1, () -> properties);
+        if (begin) dispatcher.start();
+    }
+
+    private String host() {
+        return Outbox.hostDirectoryName("localhost");
+    }
+
+    private Message message(String subject) throws MessagingException {
+        return emailer.createMessage("<p>" + subject + "</p>", subject, ADDRESS, ADDRESS);
+    }
+
+    // Waits up to `timeoutMs` for `condition` to hold, returning whether it did
+    private static boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+    Tests the Outbox's queue files, and sending an email streamed back from one, against an in-process SMTP server
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+    private static final String ADDRESS = "test@localhost";
+
+    private File directory;
+    private SmtpSink sink;
+    private EmailService emailer;
+    private Outbox outbox;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("outbox").toFile();
+        sink = new SmtpSink();
+        emailer = new EmailService("localhost", sink.getPort(), "test", "test");
+        outbox = new Outbox(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        emailer.close();
+        sink.close();
+        // Deepest first, so each directory is empty by the time it's deleted
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void pendingEmailsAreInDueOrder() throws MessagingException, IOException {
+        outbox.enqueue(emailer, message("Later"), 2000);
+        outbox.enqueue(emailer, message("Sooner"), 1000);
+
+        List<File> pending = outbox.pending(Outbox.hostDirectoryName("localhost"));
+        assertEquals(2, pending.size());
+        assertEquals(1000, Outbox.notBefore(pending.get(0)));
+        assertEquals(2000, Outbox.notBefore(pending.get(1)));
+    }
+
+    @Test
+    public void streamedEmailIsSentAndRemoved() throws MessagingException, IOException {
+        Message original = message("Streamed");
+        outbox.enqueue(emailer, original);
+        String host = Outbox.hostDirectoryName("localhost");
+        File file = outbox.pending(host).get(0);
+
+        try (SharedFileInputStream in = new SharedFileInputStream(file)) {
+            Message message = emailer.readMessage(in);
+            emailer.sendBatch(Collections.singletonList(message));
+            // The Message-ID is kept, so a retried email is recognisably the same email
+            assertArrayEquals(original.getHeader("Message-ID"), message.getHeader("Message-ID"));
+        }
+        outbox.remove(file);
+
+        assertEquals(1, sink.getMessages());
+        assertTrue(outbox.pending(host).isEmpty());
+        assertEquals(0, new File(directory, host).list().length);
+    }
+
+    @Test
+    public void removedEmailIsNoLongerPendingEvenIfLeftOnDisk() throws MessagingException, IOException {
+        outbox.enqueue(emailer, message("Sent"));
+        String host = Outbox.hostDirectoryName("localhost");
+        File file = outbox.pending(host).get(0);
+        // As left by a deletion that failed after the rename
+        File sent = new File(file.getPath() + ".sent");
+        Files.move(file.toPath(), sent.toPath());
+
+        assertTrue(outbox.pending(host).isEmpty());
+        outbox.deleteSent(host);
+        assertEquals(0, new File(directory, host).list().length);
+    }
+
+    private Message message(String subject) throws MessagingException {
+        return emailer.createMessage("<p>" + subject + "</p>", subject, ADDRESS, ADDRESS);
+    }
+}
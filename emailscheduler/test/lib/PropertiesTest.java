@@ -0,0 +1,137 @@
+/*
+    Tests the validation of mainProperties.json and emailerProperties.json on load
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class PropertiesTest {
+    private static final Gson gson = new Gson();
+    // Emailer properties with just the required settings, to which a test appends its own
+    private static final String EMAILER = "{\"host\": \"smtp.example.com\", \"port\": 25, \"sender\": \"certs@example.com\"";
+
+    private static MainProperties main(String json) throws IOException {
+        MainProperties properties = gson.fromJson(json, MainProperties.class);
+        properties.validate();
+        return properties;
+    }
+
+    private static EmailerProperties emailer(String json) throws IOException {
+        EmailerProperties properties = gson.fromJson(json, EmailerProperties.class);
+        properties.validate();
+        return properties;
+    }
+
+    @Test
+    public void acceptsCompleteMainProperties() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 0, \"hour-minute\": 0}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingHour() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour-minute\": 30}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingMinute() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 9}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHourOutOfRange() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 24, \"hour-minute\": 0}");
+    }
+
+    @Test
+    public void acceptsDistinctDatabaseNames() throws IOException {
+        main("{\"hour\": 9, \"hour-minute\": 0, \"databases\": [{\"name\": \"a\", \"db-path\": \"a.accdb\"}, "
+                + "{\"name\": \"b\", \"db-path\": \"b.accdb\"}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDuplicateDatabaseNames() throws IOException {
+        main("{\"hour\": 9, \"hour-minute\": 0, \"databases\": [{\"name\": \"a\", \"db-path\": \"a.accdb\"}, "
+                + "{\"name\": \"a\", \"db-path\": \"b.accdb\"}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnnamedDatabase() throws IOException {
+        main("{\"hour\": 9, \"hour-minute\": 0, \"databases\": [{\"db-path\": \"a.accdb\"}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingDbPath() throws IOException {
+        main("{\"hour\": 9, \"hour-minute\": 0}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDatabaseWithoutDbPath() throws IOException {
+        main("{\"hour\": 9, \"hour-minute\": 0, \"databases\": [{\"name\": \"a\", \"db-path\": \"a.accdb\"}, {\"name\": \"b\"}]}");
+    }
+
+    @Test
+    public void acceptsCompleteCluster() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 9, \"hour-minute\": 0, "
+                + "\"cluster\": {\"driver\": \"org.h2.Driver\", \"url\": \"jdbc:h2:mem:quartz\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsClusterWithoutUrl() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 9, \"hour-minute\": 0, \"cluster\": {\"driver\": \"org.h2.Driver\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsClusterWithoutDriver() throws IOException {
+        main("{\"db-path\": \"certs.accdb\", \"hour\": 9, \"hour-minute\": 0, \"cluster\": {\"url\": \"jdbc:h2:mem:quartz\"}}");
+    }
+
+    @Test
+    public void acceptsCompleteEmailerProperties() throws IOException {
+        emailer("{\"host\": \"smtp.example.com\", \"port\": 25, \"sender\": \"certs@example.com\"}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingPort() throws IOException {
+        emailer("{\"host\": \"smtp.example.com\", \"sender\": \"certs@example.com\"}");
+    }
+
+    @Test
+    public void acceptsRulesWithDistinctNames() throws IOException {
+        emailer(EMAILER + ", \"rules\": [{\"days\": 30}, {\"days\": 30, \"name\": \"managers\", \"weekdays\": [\"monday\"]}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsRulesWithSameName() throws IOException {
+        emailer(EMAILER + ", \"rules\": [{\"days\": 30}, {\"days\": 30, \"recipients\": [\"a@example.com\"]}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidWeekday() throws IOException {
+        emailer(EMAILER + ", \"rules\": [{\"days\": 30, \"weekdays\": [\"Mondy\"]}]}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidFullDigestDay() throws IOException {
+        emailer(EMAILER + ", \"change-capture\": {\"id-column\": \"id\", \"full-digest-day\": \"Sundy\"}}");
+    }
+
+    @Test
+    public void acceptsChangeCaptureWithIdColumn() throws IOException {
+        emailer(EMAILER + ", \"change-capture\": {\"id-column\": \"id\", \"full-digest-day\": \"SUNDAY\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsChangeCaptureWithoutIdColumn() throws IOException {
+        emailer(EMAILER + ", \"change-capture\": {\"full-digest-day\": \"SUNDAY\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingHost() throws IOException {
+        emailer("{\"port\": 25, \"sender\": \"certs@example.com\"}");
+    }
+}
@@ -0,0 +1,288 @@
+/*
+    Tests that QueryServer only triggers runs for requests it may trust, and serves the certificates of a synthetic database
+    page by page, as JSON or CSV, with ETags, and not before their view is built
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.quartz.JobKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class QueryServerTest {
+    private static final Map<String, JobKey> JOBS = Collections.singletonMap("default", JobKey.jobKey("emailer_job-default"));
+    private static final int ROWS = 1000;
+    // Every synthetic certificate expires within two years either side of today
+    private static final String RANGE = "from=" + LocalDate.now().minusDays(800) + "&to=" + LocalDate.now().plusDays(800);
+
+    private static File dbFile;
+    private static DbConnection connection;
+    private static EmailerProperties properties;
+
+    private QueryServer server;
+    private int port;
+
+    @BeforeClass
+    public static void createDatabase() throws IOException {
+        dbFile = SyntheticDatabase.create(ROWS);
+        connection = new DbConnection(dbFile.getPath(), "");
+        properties = new Gson().fromJson("{\"host\": \"localhost\", \"port\": 25, \"sender\": \"test@localhost\", "
+                + "\"owner-column\": \"" + SyntheticDatabase.OWNER_COLUMN + "\", "
+                + "\"change-capture\": {\"id-column\": \"" + SyntheticDatabase.ID_COLUMN + "\"}}", EmailerProperties.class);
+        properties.validate();
+    }
+
+    @AfterClass
+    public static void deleteDatabase() throws IOException {
+        connection.close();
+        dbFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop();
+    }
+
+    @Test
+    public void runWithoutTokenIsUnauthorised() throws IOException {
+        int port = freePort();
+        server = new QueryServer(null, port, "secret", null, JOBS, 15);
+        server.start();
+
+        assertEquals(401, postRuns(InetAddress.getLoopbackAddress(), port, null));
+        assertEquals(401, postRuns(InetAddress.getLoopbackAddress(), port, "Bearer wrong"));
+    }
+
+    @Test
+    public void runOnExposedServerRequiresToken() throws IOException {
+        int port = freePort();
+        server = new QueryServer("0.0.0.0", port, null, null, JOBS, 15);
+        server.start();
+
+        assertEquals(403, postRuns(InetAddress.getLoopbackAddress(), port, null));
+    }
+
+    @Test(expected = IOException.class)
+    public void servesOnLoopbackByDefault() throws IOException {
+        InetAddress local = InetAddress.getLocalHost();
+        // Needs an address other than loopback to connect from
+        assumeFalse(local.isLoopbackAddress());
+        int port = freePort();
+        server = new QueryServer(null, port, "secret", null, JOBS, 15);
+        server.start();
+
+        postRuns(local, port, null);
+    }
+
+    @Test
+    public void cursorPagesThroughEveryCertificateOnce() throws Exception {
+        startServing(QueryServerTest::readView);
+        awaitView();
+
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Response response = get("/certificates?" + RANGE + "&limit=300" + (cursor == null ? "" : "&cursor=" + cursor), null);
+            assertEquals(200, response.status);
+            JsonObject json = new Gson().fromJson(response.body, JsonObject.class);
+            JsonArray certificates = json.getAsJsonArray("certificates");
+            assertTrue(certificates.size() <= 300);
+            for (JsonElement certificate : certificates) {
+                ids.add(certificate.getAsJsonObject().get("id").getAsString());
+            }
+            // The header and the JSON agree on the next page
+            cursor = response.nextCursor;
+            JsonElement next = json.get("next");
+            assertEquals(cursor, next == null || next.isJsonNull() ? null : next.getAsString());
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(4, pages);
+        assertEquals(ROWS, ids.size());
+        assertEquals(ROWS, new HashSet<>(ids).size());
+        // In the view's order, i.e. the earliest to expire first
+        CertificateView view = connection.getView(SyntheticDatabase.OWNER_COLUMN, SyntheticDatabase.ID_COLUMN);
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(view.get(i).getId(), ids.get(i));
+        }
+    }
+
+    @Test
+    public void unchangedPageIsNotModified() throws Exception {
+        startServing(QueryServerTest::readView);
+        awaitView();
+        String path = "/certificates?" + RANGE + "&limit=10";
+        Response first = get(path, null);
+        assertEquals(200, first.status);
+        assertNotNull(first.etag);
+
+        Response again = get(path, first.etag);
+        assertEquals(304, again.status);
+        assertEquals(first.etag, again.etag);
+        assertEquals("", again.body);
+
+        // Another page is another entity
+        Response next = get(path + "&cursor=" + first.nextCursor, first.etag);
+        assertEquals(200, next.status);
+        assertNotEquals(first.etag, next.etag);
+    }
+
+    @Test
+    public void servesCsv() throws Exception {
+        startServing(QueryServerTest::readView);
+        awaitView();
+        Response json = get("/certificates?" + RANGE + "&limit=5", null);
+        Response csv = get("/certificates?" + RANGE + "&limit=5&format=csv", null);
+
+        assertEquals(200, csv.status);
+        assertTrue(csv.contentType, csv.contentType.startsWith("text/csv"));
+        String[] lines = csv.body.split("\r\n");
+        assertEquals(6, lines.length);
+        assertEquals("id,name,owner,expiry", lines[0]);
+        // The same page as the JSON, row for row
+        JsonArray certificates = new Gson().fromJson(json.body, JsonObject.class).getAsJsonArray("certificates");
+        for (int i = 0; i < 5; i++) {
+            JsonObject certificate = certificates.get(i).getAsJsonObject();
+            assertEquals(certificate.get("id").getAsString() + "," + certificate.get("name").getAsString() + ","
+                    + certificate.get("owner").getAsString() + "," + certificate.get("expiry").getAsString(), lines[i + 1]);
+        }
+        // A CSV page is cached separately from the JSON one
+        assertNotEquals(json.etag, csv.etag);
+    }
+
+    @Test
+    public void unavailableUntilTheFirstViewIsBuilt() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        startServing((source, ownerColumn, idColumn) -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return connection.getView(ownerColumn, idColumn);
+        });
+
+        Response response = get("/certificates?" + RANGE, null);
+        assertEquals(503, response.status);
+        assertEquals("30", response.retryAfter);
+
+        release.countDown();
+        response = awaitView();
+        assertEquals(200, response.status);
+        assertNull(response.retryAfter);
+    }
+
+    private static CertificateView readView(String source, String ownerColumn, String idColumn) throws IOException {
+        return connection.getView(ownerColumn, idColumn);
+    }
+
+    // Starts a server reading the views from `viewSource`, with the synthetic database's columns
+    private void startServing(QueryServer.ViewSource viewSource) throws IOException {
+        port = freePort();
+        server = new QueryServer(null, port, null, null, JOBS, 15, viewSource, () -> properties);
+        server.start();
+    }
+
+    // Waits up to 5s for the server to stop answering 503 whilst its view is first built, returning the response then
+    private Response awaitView() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Response response = get("/certificates?" + RANGE, null);
+        while (response.status == 503 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+            response = get("/certificates?" + RANGE, null);
+        }
+        return response;
+    }
+
+    // A response's status, body and the headers of interest
+    private static class Response {
+        private int status;
+        private String body;
+        private String etag;
+        private String nextCursor;
+        private String contentType;
+        private String retryAfter;
+    }
+
+    // GETs `path` from the server, with the If-None-Match header `ifNoneMatch` if not null
+    private Response get(String path, String ifNoneMatch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), port, path).openConnection();
+        try {
+            if (ifNoneMatch != null) connection.setRequestProperty("If-None-Match", ifNoneMatch);
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            response.etag = connection.getHeaderField("ETag");
+            response.nextCursor = connection.getHeaderField("X-Next-Cursor");
+            response.contentType = connection.getHeaderField("Content-Type");
+            response.retryAfter = connection.getHeaderField("Retry-After");
+            InputStream in = response.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                try (InputStream stream = in) {
+                    byte[] buffer = new byte[8192];
+                    for (int read; (read = stream.read(buffer)) != -1; ) {
+                        body.write(buffer, 0, read);
+                    }
+                }
+            }
+            response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+            return response;
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    // POSTs to /runs at `address` and `port`, with the Authorization header `authorization` if not null, and returns the status
+    private static int postRuns(InetAddress address, int port, String authorization) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", address.getHostAddress(), port, "/runs").openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            if (authorization != null) connection.setRequestProperty("Authorization", authorization);
+            return connection.getResponseCode();
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+    Tests SendLedger's claims against an embedded H2 database, standing in for the cluster's shared database
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendLedgerTest {
+    private static final String RUN = "default:2019-06-01";
+    private static final String TO = "a@example.com,b@example.com";
+
+    private static int databases = 0;
+
+    private SendLedger first;
+    private SendLedger second;
+
+    // Ledgers of two nodes sharing a fresh in-memory database, whose claims expire after `leaseMs`
+    private void createLedgers(long leaseMs) throws SQLException {
+        ClusterProperties properties = new Gson().fromJson("{\"driver\": \"org.h2.Driver\", \"url\": \"jdbc:h2:mem:ledger"
+                + databases++ + ";DB_CLOSE_DELAY=-1\", \"claim-lease-ms\": " + leaseMs + "}", ClusterProperties.class);
+        first = new SendLedger(properties, "first");
+        second = new SendLedger(properties, "second");
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        createLedgers(60000);
+    }
+
+    @Test
+    public void claimIsHeldByOneNode() throws SQLException {
+        assertTrue(first.claim(RUN, TO));
+        assertFalse(second.claim(RUN, TO));
+        assertFalse(first.claim(RUN, TO));
+        assertTrue(second.claim("default:2019-06-02", TO));
+    }
+
+    @Test
+    public void releasedClaimMayBeClaimedAgain() throws SQLException {
+        assertTrue(first.claim(RUN, TO));
+        first.release(RUN, TO);
+        assertTrue(second.claim(RUN, TO));
+    }
+
+    @Test
+    public void sentRecipientIsNeverClaimedAgain() throws SQLException, InterruptedException {
+        createLedgers(1);
+        assertTrue(first.claim(RUN, TO));
+        first.markSent(RUN, TO);
+        Thread.sleep(10);
+        assertFalse(second.claim(RUN, TO));
+    }
+
+    @Test(expected = SQLException.class)
+    public void markSentRequiresClaim() throws SQLException {
+        assertTrue(first.claim(RUN, TO));
+        second.markSent(RUN, TO);
+    }
+
+    @Test(expected = SQLException.class)
+    public void expiredClaimIsTakenOver() throws SQLException, InterruptedException {
+        createLedgers(1);
+        assertTrue(first.claim(RUN, TO));
+        Thread.sleep(10);
+        assertTrue(second.claim(RUN, TO));
+        // The first node's claim has been taken over, so it may no longer record the send
+        first.markSent(RUN, TO);
+    }
+
+    @Test
+    public void longRecipientListsAreKeyedByHash() throws SQLException {
+        String to = String.join(",", Collections.nCopies(100, "recipient@example.com"));
+        assertTrue(first.claim(RUN, to));
+        assertFalse(second.claim(RUN, to));
+        first.markSent(RUN, to);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+    An in-process SMTP server on an ephemeral local port, which accepts and discards every message. Counts the connections
+    and messages it receives, and can be told to answer sends with an error (e.g. a 451 throttling response).
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmtpSink implements AutoCloseable {
+    private final ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger messages = new AtomicInteger();
+
+    // Number of the next sends to reject, and the reply to reject them with
+    private final AtomicInteger rejections = new AtomicInteger();
+    private volatile String rejection;
+
+    // THROWS: IOException when failing to bind.
+    public SmtpSink() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread session = new Thread(() -> serve(socket));
+                    session.setDaemon(true);
+                    session.start();
+                }
+                catch (IOException e) {
+                    // Server closed
+                }
+            }
+        }, "smtp-sink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    // Number of connections accepted so far
+    public int getConnections() {
+        return connections.get();
+    }
+
+    // Number of messages accepted so far
+    public int getMessages() {
+        return messages.get();
+    }
+
+    // Answers the next `count` MAIL commands with `reply` (e.g. "451 4.7.1 Rate limited") rather than accepting them
+    public void reject(int count, String reply) {
+        rejection = reply;
+        rejections.set(count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    // Answers the SMTP commands of one connection until QUIT
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII))) {
+            OutputStream out = s.getOutputStream();
+            reply(out, "220 sink");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                if (command.equals("MAIL") && rejections.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    reply(out, rejection);
+                }
+                else if (command.equals("DATA")) {
+                    reply(out, "354 end with .");
+                    // Discard the message up to the terminating "."
+                    while ((line = in.readLine()) != null && !line.equals(".")) { }
+                    messages.incrementAndGet();
+                    reply(out, "250 ok");
+                }
+                else if (command.equals("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                }
+                else {
+                    reply(out, "250 ok");
+                }
+            }
+        }
+        catch (IOException e) {
+            // Connection dropped
+        }
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+    Generates Access databases of synthetic certificates, for the tests and benchmarks.
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import com.healthmarketscience.jackcess.ColumnBuilder;
+import com.healthmarketscience.jackcess.DataType;
+import com.healthmarketscience.jackcess.Database;
+import com.healthmarketscience.jackcess.DatabaseBuilder;
+import com.healthmarketscience.jackcess.Table;
+import com.healthmarketscience.jackcess.TableBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public final class SyntheticDatabase {
+    // Owner column of the generated table, with 50 distinct owners
+    public static final String OWNER_COLUMN = "owner";
+    // Id column of the generated table, unique per row
+    public static final String ID_COLUMN = "certificateId";
+
+    // Batch size used when inserting rows
+    private static final int INSERT_BATCH = 10000;
+
+    private SyntheticDatabase() {
+    }
+
+    // Creates a temporary database (deleted on exit) with a certificates table of `rows` rows, whose expiry dates are spread
+    // over the two years either side of today
+    // THROWS: IOException when failing to write the database.
+    public static File create(int rows) throws IOException {
+        File file = File.createTempFile("emailscheduler-synthetic", ".accdb");
+        file.deleteOnExit();
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long spread = TimeUnit.DAYS.toMillis(730);
+        try (Database db = DatabaseBuilder.create(Database.FileFormat.V2010, file)) {
+            Table table = new TableBuilder("FIELD HIDDEN")
+                    .addColumn(new ColumnBuilder("FIELD HIDDEN", DataType.SHORT_DATE_TIME))
+                    .addColumn(new ColumnBuilder("certificateExpireDate", DataType.SHORT_DATE_TIME))
+                    .addColumn(new ColumnBuilder("certificateName", DataType.TEXT))
+                    .addColumn(new ColumnBuilder(OWNER_COLUMN, DataType.TEXT))
+                    .addColumn(new ColumnBuilder(ID_COLUMN, DataType.LONG))
+                    .toTable(db);
+            List<Object[]> batch = new ArrayList<>(INSERT_BATCH);
+            for (int i = 0; i < rows; i++) {
+                Date expiry = new Date(now - spread + (long) (random.nextDouble() * 2 * spread));
+                batch.add(new Object[] {expiry, expiry, "Certificate " + i, "team-" + (i % 50), i});
+                if (batch.size() == INSERT_BATCH) {
+                    table.addRows(batch);
+                    batch.clear();
+                }
+            }
+            table.addRows(batch);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+    Tests TokenBucket's pacing, bursts, and its slowing down and speeding back up
+    Copyright © 2019 Omar Tanner
+ */
+
+package com.omartanner.emailscheduler.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void unlimitedNeverWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            bucket.acquire();
+        }
+        assertTrue(elapsedMs(start) < 500);
+        assertTrue(Double.isInfinite(bucket.getPermitsPerSecond()));
+    }
+
+    @Test
+    public void pacesPermitsAtTheRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(50, 1);
+        long start = System.nanoTime();
+        // The first permit is immediate, then each of the rest waits 20ms
+        for (int i = 0; i < 11; i++) {
+            bucket.acquire();
+        }
+        assertTrue(elapsedMs(start) >= 180);
+    }
+
+    @Test
+    public void allowsABurstAfterAPause() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(2, 5);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+        }
+        assertTrue(elapsedMs(start) < 400);
+        // The sixth has to wait for a token at 2 per second
+        bucket.acquire();
+        assertTrue(elapsedMs(start) >= 400);
+    }
+
+    @Test
+    public void throttleHalvesTheRateAndRecoverRestoresIt() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        bucket.throttle();
+        assertEquals(5, bucket.getPermitsPerSecond(), DELTA);
+        bucket.throttle();
+        assertEquals(2.5, bucket.getPermitsPerSecond(), DELTA);
+
+        bucket.recover();
+        assertEquals(2.5 * 1.05, bucket.getPermitsPerSecond(), DELTA);
+        for (int i = 0; i < 100; i++) {
+            bucket.recover();
+        }
+        // Never past the configured rate
+        assertEquals(10, bucket.getPermitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void throttleNeverStopsSendsAltogether() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        for (int i = 0; i < 100; i++) {
+            bucket.throttle();
+        }
+        assertEquals(1.0 / 60, bucket.getPermitsPerSecond(), DELTA);
+    }
+
+    @Test
+    public void throttlingAnUnlimitedBucketLimitsItBelowTheObservedRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        bucket.throttle();
+        // Permits were given about every 20ms, i.e. at most 50 per second, so half that at most
+        double rate = bucket.getPermitsPerSecond();
+        assertTrue(rate > 0 && rate <= 25);
+    }
+
+    @Test
+    public void newLimitKeepsTheSlowdown() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        bucket.throttle();
+        bucket.setLimit(20, 1);
+        assertEquals(5, bucket.getPermitsPerSecond(), DELTA);
+        bucket.setLimit(2, 1);
+        assertEquals(2, bucket.getPermitsPerSecond(), DELTA);
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}